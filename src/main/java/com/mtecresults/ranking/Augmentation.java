@@ -0,0 +1,50 @@
+package com.mtecresults.ranking;
+
+import java.util.Objects;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * A monoid over tree elements, maintained per subtree by
+ * {@link OrderStatisticTree} so that aggregates over a rank range can be
+ * answered in O(log n).
+ *
+ * combine must be associative with identity as its neutral element. Tied
+ * elements are combined in no particular order, so combine should also be
+ * commutative unless ties cannot occur.
+ *
+ * @param <T> the element type.
+ * @param <A> the aggregate type.
+ */
+public interface Augmentation<T, A> {
+
+    A identity();
+
+    //aggregate of a single element
+    A lift(T element);
+
+    A combine(A left, A right);
+
+    static <T, A> Augmentation<T, A> of(A identity, Function<? super T, ? extends A> lift,
+                                        BinaryOperator<A> combine) {
+        Objects.requireNonNull(lift, "The lift function is null.");
+        Objects.requireNonNull(combine, "The combine function is null.");
+
+        return new Augmentation<T, A>() {
+            @Override
+            public A identity() {
+                return identity;
+            }
+
+            @Override
+            public A lift(T element) {
+                return lift.apply(element);
+            }
+
+            @Override
+            public A combine(A left, A right) {
+                return combine.apply(left, right);
+            }
+        };
+    }
+}
@@ -0,0 +1,94 @@
+package com.mtecresults.ranking;
+
+/**
+ * AVL rebalancing: node.height is the subtree height and sibling heights
+ * differ by at most one.
+ */
+final class AvlBalancer extends Balancer {
+
+    private static int height(Node<?> node) {
+        return node == null ? -1 : node.height;
+    }
+
+    private static void update(Node<?> node) {
+        node.height = Math.max(height(node.left), height(node.right)) + 1;
+    }
+
+    @Override
+    <T> void init(Node<T> node) {
+        node.height = 0;
+    }
+
+    @Override
+    <T> void afterInsert(OrderStatisticTree<T> tree, Node<T> node) {
+        fix(tree, node.parent, true);
+    }
+
+    @Override
+    <T> void afterDelete(OrderStatisticTree<T> tree, Node<T> removed) {
+        fix(tree, removed.parent, false);
+    }
+
+    // Counts are already correct, so this is the only upward walk and it stops
+    // as soon as a subtree keeps both its balance and its height.
+    private <T> void fix(OrderStatisticTree<T> tree, Node<T> parent, boolean insertion) {
+        while (parent != null) {
+            Node<T> grandParent = parent.parent;
+
+            if (height(parent.left) == height(parent.right) + 2) {
+                if (height(parent.left.left) < height(parent.left.right)) {
+                    rotateLeft(tree, parent.left);
+                }
+                rotateRight(tree, parent);
+            } else if (height(parent.right) == height(parent.left) + 2) {
+                if (height(parent.right.right) < height(parent.right.left)) {
+                    rotateRight(tree, parent.right);
+                }
+                rotateLeft(tree, parent);
+            } else {
+                int height = Math.max(height(parent.left), height(parent.right)) + 1;
+
+                if (height == parent.height) {
+                    // The subtree kept its height, nothing above it can be
+                    // out of balance.
+                    return;
+                }
+
+                parent.height = height;
+                parent = grandParent;
+                continue;
+            }
+
+            if (insertion) {
+                // Whenever fixing after insertion, at most one rotation is
+                // required in order to maintain the balance, and it restores
+                // the height the subtree had before the insertion.
+                return;
+            }
+
+            // The rotation may have lowered the subtree, carry on above it.
+            parent = grandParent;
+        }
+    }
+
+    private <T> void rotateLeft(OrderStatisticTree<T> tree, Node<T> node) {
+        Node<T> top = tree.rotateLeft(node);
+        update(node);
+        update(top);
+    }
+
+    private <T> void rotateRight(OrderStatisticTree<T> tree, Node<T> node) {
+        Node<T> top = tree.rotateRight(node);
+        update(node);
+        update(top);
+    }
+
+    @Override
+    <T> boolean isLocallyValid(Node<T> node) {
+        int leftHeight = height(node.left);
+        int rightHeight = height(node.right);
+
+        return node.height == Math.max(leftHeight, rightHeight) + 1
+                && Math.abs(leftHeight - rightHeight) < 2;
+    }
+}
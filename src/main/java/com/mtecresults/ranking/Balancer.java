@@ -0,0 +1,38 @@
+package com.mtecresults.ranking;
+
+/**
+ * Rebalancing strategy of a {@link BalancingScheme}.
+ *
+ * Each scheme keeps its per-node balance information in {@link Node#height}:
+ * the height for AVL, the rank for WAVL, the color for red-black and the
+ * priority for a treap. Structural changes go through
+ * {@link OrderStatisticTree#rotateLeft} and {@link OrderStatisticTree#rotateRight},
+ * which keep counts and aggregates correct, so a strategy only maintains its
+ * own field.
+ */
+abstract class Balancer {
+
+    //balance information of a node about to be linked into a tree
+    abstract <T> void init(Node<T> node);
+
+    //node was just linked as a leaf, or as the root of an empty tree
+    abstract <T> void afterInsert(OrderStatisticTree<T> tree, Node<T> node);
+
+    //removed was unlinked, it had at most one child which took its place under
+    //removed.parent, its own links and balance information are left as they were
+    abstract <T> void afterDelete(OrderStatisticTree<T> tree, Node<T> removed);
+
+    //node was relinked by a bulk rebuild at depth in a tree treeHeight high with
+    //every level but the last full, node.height holds the height of its subtree
+    <T> void rebuilt(Node<T> node, int depth, int treeHeight) {
+    }
+
+    //the scheme's invariant between node and its children holds
+    abstract <T> boolean isLocallyValid(Node<T> node);
+
+    //1 for nodes that must occur equally often on every path from a node down
+    //to a missing child, 0 when the scheme has no such invariant
+    <T> int pathWeight(Node<T> node) {
+        return 0;
+    }
+}
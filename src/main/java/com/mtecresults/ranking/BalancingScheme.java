@@ -0,0 +1,31 @@
+package com.mtecresults.ranking;
+
+/**
+ * Rebalancing algorithm of an {@link OrderStatisticTree}.
+ *
+ * All schemes give O(log n) add, remove, get and rankOf; they differ in how
+ * tightly they balance, which speeds up reads, against how much work a change
+ * costs. Every scheme keeps the per-node counts correct across its rotations.
+ */
+public enum BalancingScheme {
+
+    //strictest balance, height at most 1.44 log n, up to O(log n) rotations per remove
+    AVL(new AvlBalancer()),
+    //AVL height when built by adds only, at most 2 rotations per remove and
+    //O(1) amortized rebalancing work per change
+    WAVL(new WavlBalancer()),
+    //height at most 2 log n, at most 3 rotations per remove
+    RED_BLACK(new RedBlackBalancer()),
+    //randomized, expected height about 3 log n, no rebalancing on remove
+    TREAP(new TreapBalancer());
+
+    private final Balancer balancer;
+
+    BalancingScheme(Balancer balancer) {
+        this.balancer = balancer;
+    }
+
+    Balancer balancer() {
+        return balancer;
+    }
+}
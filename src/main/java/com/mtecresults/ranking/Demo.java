@@ -1,10 +1,15 @@
 package com.mtecresults.ranking;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 
 public class Demo {
     
@@ -123,8 +128,644 @@ public class Demo {
                           (endTime - startTime) / 1e6);
     }
     
+    //finish times arrive nearly sorted: chip reads from several mats are
+    //delayed by a few seconds, so each result lands close to last place
+    private static void profileFingerInsertion() {
+        long seed = System.nanoTime();
+        final int size = 1_000_000;
+        Random random = new Random(seed);
+        List<Integer> finishTimes = new ArrayList<>(size);
+        
+        System.out.println("Seed = " + seed);
+        
+        for (int i = 0; i < size; ++i) {
+            //about 10 finishers per second over a race of 28 hours, in millis
+            finishTimes.add(i * 100 + random.nextInt(5_000));
+        }
+        
+        //comparisons are what finger search saves, count them as well
+        long[] comparisons = new long[1];
+        Comparator<Integer> comparator = (a, b) -> {
+            comparisons[0]++;
+            return a.compareTo(b);
+        };
+        OrderStatisticTree<Integer> rootTree = new OrderStatisticTree<>(comparator);
+        OrderStatisticTree<Integer> fingerTree = new OrderStatisticTree<>(comparator);
+        
+        long startTime = System.nanoTime();
+        
+        for (Integer i : finishTimes) {
+            rootTree.add(i);
+        }
+        
+        long endTime = System.nanoTime();
+        
+        System.out.printf("OrderStatisticTree.add() in %.2f millseconds, %.2f comparisons per add.\n",
+                          (endTime - startTime) / 1e6, (double) comparisons[0] / size);
+        
+        comparisons[0] = 0;
+        startTime = System.nanoTime();
+        
+        for (Integer i : finishTimes) {
+            fingerTree.addFromFinger(i);
+        }
+        
+        endTime = System.nanoTime();
+        
+        System.out.printf("OrderStatisticTree.addFromFinger() in %.2f millseconds, %.2f comparisons per add.\n",
+                          (endTime - startTime) / 1e6, (double) comparisons[0] / size);
+        
+        System.out.println("Healthy: " + fingerTree.isHealthy());
+    }
+    
+    //a sketch trades exact ranks for memory, measure how much of each
+    private static void profileSketchAccuracy() {
+        long seed = System.nanoTime();
+        final int size = 1_000_000;
+        final int probes = 10_000;
+        Random random = new Random(seed);
+        OrderStatisticTree<Integer> orderTree = new OrderStatisticTree<>();
+        
+        System.out.println("Seed = " + seed);
+        
+        List<Integer> contents = new ArrayList<>(size);
+        
+        while (contents.size() < size) {
+            int i = random.nextInt();
+            if (orderTree.add(i)) {
+                contents.add(i);
+            }
+        }
+        
+        for (int k : new int[]{50, 200, 800}) {
+            //per-thread sketches merged at the end, as a parallel ingest would
+            List<KllSketch<Integer>> parts = new ArrayList<>();
+            
+            long startTime = System.nanoTime();
+            
+            for (int p = 0; p < 4; p++) {
+                KllSketch<Integer> part = new KllSketch<>(Comparator.naturalOrder(), k, new Random(seed + p));
+                for (int i = p; i < size; i += 4) {
+                    part.add(contents.get(i));
+                }
+                parts.add(part);
+            }
+            
+            KllSketch<Integer> sketch = parts.get(0);
+            for (int p = 1; p < parts.size(); p++) {
+                sketch.merge(parts.get(p));
+            }
+            
+            long endTime = System.nanoTime();
+            
+            long maxError = 0;
+            long totalError = 0;
+            
+            for (int i = 0; i < probes; i++) {
+                Integer probe = contents.get(random.nextInt(size));
+                long error = Math.abs(sketch.rankOf(probe) - orderTree.rankOf(probe));
+                maxError = Math.max(maxError, error);
+                totalError += error;
+            }
+            
+            System.out.printf("KllSketch k=%d: add+merge in %.2f millseconds, %d of %d elements retained, "
+                              + "rank error mean %.4f%% max %.4f%% (bound %.4f%%).\n",
+                              k, (endTime - startTime) / 1e6, sketch.getRetainedItems(), size,
+                              100.0 * totalError / probes / size, 100.0 * maxError / size,
+                              100.0 * sketch.getNormalizedRankError());
+        }
+        
+        System.out.printf("OrderStatisticTree: %d elements retained, exact ranks.\n", orderTree.size());
+    }
+    
+    //mix of mutations that change the tree and ones that find nothing to do
+    private static void profileMutations() {
+        long seed = System.nanoTime();
+        final int size = 1_000_000;
+        Random random = new Random(seed);
+        OrderStatisticTree<Integer> orderTree = new OrderStatisticTree<>();
+        
+        System.out.println("Seed = " + seed);
+        
+        List<Integer> contents = new ArrayList<>(size);
+        List<Integer> absent = new ArrayList<>(size);
+        
+        for (int i = 0; i < size; ++i) {
+            //even values are added, odd ones never are
+            contents.add(random.nextInt() & ~1);
+            absent.add(random.nextInt() | 1);
+        }
+        
+        for (int round = 0; round < 3; ++round) {
+            long startTime = System.nanoTime();
+            
+            for (Integer i : contents) {
+                orderTree.add(i);
+            }
+            
+            long addTime = System.nanoTime();
+            
+            for (Integer i : contents) {
+                orderTree.add(i);
+            }
+            
+            long duplicateTime = System.nanoTime();
+            
+            for (Integer i : absent) {
+                orderTree.remove(i);
+            }
+            
+            long missTime = System.nanoTime();
+            
+            for (Integer i : contents) {
+                orderTree.remove(i);
+            }
+            
+            long endTime = System.nanoTime();
+            
+            System.out.printf("OrderStatisticTree add %.2f, duplicate add %.2f, missing remove %.2f, "
+                              + "remove %.2f millseconds.\n",
+                              (addTime - startTime) / 1e6, (duplicateTime - addTime) / 1e6,
+                              (missTime - duplicateTime) / 1e6, (endTime - missTime) / 1e6);
+        }
+        
+        System.out.println("Healthy: " + orderTree.isHealthy());
+    }
+    
+    //nightly report: rank of every registered participant, in finish order
+    private static void profileBatchRanks() {
+        long seed = System.nanoTime();
+        final int size = 1_000_000;
+        Random random = new Random(seed);
+        OrderStatisticTree<Integer> orderTree = new OrderStatisticTree<>();
+        
+        System.out.println("Seed = " + seed);
+        
+        List<Integer> contents = new ArrayList<>(size);
+        
+        for (int i = 0; i < size; ++i) {
+            Integer value = random.nextInt();
+            orderTree.add(value);
+            contents.add(value);
+        }
+        
+        contents.sort(Comparator.naturalOrder());
+        int[] ranks = new int[size];
+        
+        for (int round = 0; round < 3; ++round) {
+            long startTime = System.nanoTime();
+            
+            for (int i = 0; i < size; ++i) {
+                ranks[i] = orderTree.rankOf(contents.get(i));
+            }
+            
+            long endTime = System.nanoTime();
+            
+            System.out.printf("OrderStatisticTree.rankOf() x %d in %.2f millseconds.\n",
+                              size, (endTime - startTime) / 1e6);
+            
+            startTime = System.nanoTime();
+            int[] batch = orderTree.rankOfAll(contents);
+            endTime = System.nanoTime();
+            
+            System.out.printf("OrderStatisticTree.rankOfAll() in %.2f millseconds, same ranks: %b.\n",
+                              (endTime - startTime) / 1e6, Arrays.equals(ranks, batch));
+            
+            startTime = System.nanoTime();
+            batch = orderTree.rankOfAll(contents, ForkJoinPool.commonPool());
+            endTime = System.nanoTime();
+            
+            System.out.printf("OrderStatisticTree.rankOfAll(pool) in %.2f millseconds on %d threads, "
+                              + "same ranks: %b.\n", (endTime - startTime) / 1e6,
+                              ForkJoinPool.commonPool().getParallelism(), Arrays.equals(ranks, batch));
+        }
+    }
+    
+    //what-if projections fork the live leaderboard
+    private static void profileCopy() {
+        long seed = System.nanoTime();
+        final int size = 1_000_000;
+        Random random = new Random(seed);
+        OrderStatisticTree<Integer> orderTree = new OrderStatisticTree<>();
+        
+        System.out.println("Seed = " + seed);
+        
+        for (int i = 0; i < size; ++i) {
+            orderTree.add(random.nextInt());
+        }
+        
+        for (int round = 0; round < 3; ++round) {
+            //both mostly allocate, collect the previous round first so its garbage is not billed here
+            System.gc();
+            long startTime = System.nanoTime();
+            
+            OrderStatisticTree<Integer> added = new OrderStatisticTree<>();
+            added.addAll(orderTree.asNavigableSet());
+            
+            long endTime = System.nanoTime();
+            
+            System.out.printf("OrderStatisticTree.addAll() in %.2f millseconds.\n",
+                              (endTime - startTime) / 1e6);
+            
+            System.gc();
+            startTime = System.nanoTime();
+            
+            OrderStatisticTree<Integer> copy = orderTree.copy();
+            
+            endTime = System.nanoTime();
+            
+            System.out.printf("OrderStatisticTree.copy() in %.2f millseconds, healthy: %b.\n",
+                              (endTime - startTime) / 1e6, copy.isHealthy() && added.size() == copy.size());
+        }
+    }
+    
+    //same leaderboard under every balancing scheme: a results feed that mostly
+    //rescores participants against a spectator site that mostly looks up ranks
+    private static void profileBalancingSchemes() {
+        long seed = System.nanoTime();
+        final int size = 1_000_000;
+        final int operations = 1_000_000;
+        Random random = new Random(seed);
+        int[] initial = new int[size];
+        
+        System.out.println("Seed = " + seed);
+        
+        for (int i = 0; i < size; ++i) {
+            initial[i] = random.nextInt();
+        }
+        
+        for (int round = 0; round < 2; ++round) {
+            BalancingScheme bestChurn = null;
+            BalancingScheme bestRead = null;
+            long bestChurnTime = Long.MAX_VALUE;
+            long bestReadTime = Long.MAX_VALUE;
+            
+            for (BalancingScheme scheme : BalancingScheme.values()) {
+                OrderStatisticTree<Integer> orderTree = new OrderStatisticTree<>(
+                        Comparator.<Integer>naturalOrder(), null, null, scheme);
+                int[] values = initial.clone();
+                
+                System.gc();
+                long startTime = System.nanoTime();
+                
+                for (int value : values) {
+                    orderTree.add(value);
+                }
+                
+                long buildTime = System.nanoTime();
+                
+                //80% rescores, 20% reads
+                long checksum = runWorkload(orderTree, values, seed, operations, 80);
+                
+                long churnTime = System.nanoTime();
+                
+                //5% rescores, 95% reads
+                checksum += runWorkload(orderTree, values, seed + 1, operations, 5);
+                
+                long endTime = System.nanoTime();
+                
+                System.out.printf("%-9s build %.2f, churn-heavy %.2f, read-heavy %.2f millseconds, "
+                                  + "healthy: %b (%d).\n", scheme,
+                                  (buildTime - startTime) / 1e6, (churnTime - buildTime) / 1e6,
+                                  (endTime - churnTime) / 1e6, orderTree.isHealthy(), checksum);
+                
+                if (churnTime - buildTime < bestChurnTime) {
+                    bestChurnTime = churnTime - buildTime;
+                    bestChurn = scheme;
+                }
+                if (endTime - churnTime < bestReadTime) {
+                    bestReadTime = endTime - churnTime;
+                    bestRead = scheme;
+                }
+            }
+            
+            System.out.println("Best for churn-heavy: " + bestChurn + ", best for read-heavy: " + bestRead);
+        }
+    }
+    
+    //churnPercent of the operations move a random participant to a new score,
+    //the rest look up either its rank or a random rank
+    private static long runWorkload(OrderStatisticTree<Integer> orderTree, int[] values, long seed,
+                                    int operations, int churnPercent) {
+        Random random = new Random(seed);
+        long checksum = 0;
+        
+        for (int i = 0; i < operations; ++i) {
+            int participant = random.nextInt(values.length);
+            
+            if (random.nextInt(100) < churnPercent) {
+                orderTree.remove(values[participant]);
+                values[participant] = random.nextInt();
+                orderTree.add(values[participant]);
+            } else if (random.nextBoolean()) {
+                checksum += orderTree.rankOf(values[participant]);
+            } else {
+                checksum += orderTree.get(1 + random.nextInt(orderTree.size())).size();
+            }
+        }
+        
+        return checksum;
+    }
+    
+    //race-day corrections: a burst removing a fifth of the results, eager
+    //removal against tombstones compacted once the burst is over
+    private static void profileLazyDeletion() {
+        long seed = System.nanoTime();
+        final int size = 1_000_000;
+        final int burst = size / 5;
+        Random random = new Random(seed);
+        OrderStatisticTree<Integer> orderTree = new OrderStatisticTree<>();
+        
+        System.out.println("Seed = " + seed);
+        
+        List<Integer> contents = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            Integer value = random.nextInt();
+            if (orderTree.add(value)) {
+                contents.add(value);
+            }
+        }
+        
+        for (int round = 0; round < 3; ++round) {
+            Collections.shuffle(contents, random);
+            List<Integer> removed = contents.subList(0, burst);
+            
+            for (boolean lazy : new boolean[]{false, true}) {
+                OrderStatisticTree<Integer> corrected = orderTree.copy();
+                corrected.setLazyDeletion(lazy);
+                LatencyHistogram latencies = new LatencyHistogram();
+                
+                System.gc();
+                long startTime = System.nanoTime();
+                
+                for (Integer i : removed) {
+                    long before = System.nanoTime();
+                    corrected.remove(i);
+                    latencies.record(System.nanoTime() - before);
+                }
+                
+                long burstTime = System.nanoTime();
+                
+                corrected.compact();
+                
+                long endTime = System.nanoTime();
+                
+                System.out.printf("%s removal burst %.2f, compact %.2f millseconds, healthy: %b\n  %s\n",
+                                  lazy ? "Lazy" : "Eager", (burstTime - startTime) / 1e6,
+                                  (endTime - burstTime) / 1e6,
+                                  corrected.isHealthy() && corrected.size() == contents.size() - burst, latencies);
+            }
+        }
+    }
+    
+    //rank among age groups: one tree counting categories against an overall
+    //tree plus a tree per category
+    private static void profileCategories() {
+        long seed = System.nanoTime();
+        final int size = 1_000_000;
+        final int categories = 14;
+        Random random = new Random(seed);
+        
+        System.out.println("Seed = " + seed);
+        
+        List<Integer> contents = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            contents.add(random.nextInt());
+        }
+        
+        for (int round = 0; round < 3; ++round) {
+            System.gc();
+            long startTime = System.nanoTime();
+            
+            OrderStatisticTree<Integer> categorized = new OrderStatisticTree<>(Comparator.<Integer>naturalOrder(),
+                    value -> (value & 0x7fffffff) % categories, categories);
+            for (Integer i : contents) {
+                categorized.add(i);
+            }
+            
+            long addTime = System.nanoTime();
+            long checksum = 0;
+            
+            for (Integer i : contents) {
+                checksum += categorized.rankOf(i, (i & 0x7fffffff) % categories);
+            }
+            
+            long endTime = System.nanoTime();
+            
+            System.out.printf("Categorized tree add %.2f, category rank %.2f millseconds (%d).\n",
+                              (addTime - startTime) / 1e6, (endTime - addTime) / 1e6, checksum);
+            
+            categorized = null;
+            System.gc();
+            startTime = System.nanoTime();
+            
+            OrderStatisticTree<Integer> overall = new OrderStatisticTree<>();
+            List<OrderStatisticTree<Integer>> trees = new ArrayList<>();
+            for (int c = 0; c < categories; ++c) {
+                trees.add(new OrderStatisticTree<>());
+            }
+            for (Integer i : contents) {
+                overall.add(i);
+                trees.get((i & 0x7fffffff) % categories).add(i);
+            }
+            
+            addTime = System.nanoTime();
+            checksum = 0;
+            
+            for (Integer i : contents) {
+                checksum += trees.get((i & 0x7fffffff) % categories).rankOf(i);
+            }
+            
+            endTime = System.nanoTime();
+            
+            System.out.printf("Tree per category add %.2f, category rank %.2f millseconds (%d).\n",
+                              (addTime - startTime) / 1e6, (endTime - addTime) / 1e6, checksum);
+        }
+    }
+    
+    //sustained rescoring with and without the node pool, allocation measured
+    //per thread, with distinct scores and with scores coarse enough to tie
+    private static void profileNodePool() {
+        long seed = System.nanoTime();
+        final int size = 1_000_000;
+        final int rescores = 2_000_000;
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        
+        System.out.println("Seed = " + seed);
+        
+        for (int round = 0; round < 2; ++round) {
+            for (int shift : new int[]{0, 12}) {
+                for (int capacity : new int[]{0, 4096}) {
+                    Random random = new Random(seed);
+                    OrderStatisticTree<Integer> orderTree = new OrderStatisticTree<>(
+                            Comparator.comparingInt(value -> value >> shift));
+                    orderTree.setNodePoolCapacity(capacity);
+                    Integer[] values = new Integer[size];
+                    
+                    for (int i = 0; i < size; ++i) {
+                        values[i] = random.nextInt();
+                        orderTree.add(values[i]);
+                    }
+                    
+                    //the new Integer of each rescore, 16 bytes, is the element itself
+                    System.gc();
+                    long startBytes = threads.getThreadAllocatedBytes(thread);
+                    long startTime = System.nanoTime();
+                    
+                    for (int i = 0; i < rescores; ++i) {
+                        int participant = random.nextInt(size);
+                        orderTree.remove(values[participant]);
+                        values[participant] = random.nextInt();
+                        orderTree.add(values[participant]);
+                    }
+                    
+                    long endTime = System.nanoTime();
+                    long endBytes = threads.getThreadAllocatedBytes(thread);
+                    
+                    System.out.printf("%s scores, pool %d: %d rescores in %.2f millseconds, "
+                                      + "%.1f bytes allocated per rescore, healthy: %b\n",
+                                      shift == 0 ? "Distinct" : "Tied", capacity, rescores,
+                                      (endTime - startTime) / 1e6, (double) (endBytes - startBytes) / rescores,
+                                      orderTree.isHealthy());
+                }
+            }
+        }
+    }
+    
+    private static void profileLargeTree() {
+        long seed = System.nanoTime();
+        final int size = 1_000_000;
+        final int queries = 1_000_000;
+        Runtime runtime = Runtime.getRuntime();
+        Random random = new Random(seed);
+        Integer[] values = new Integer[size];
+        
+        System.out.println("Seed = " + seed);
+        
+        for (int i = 0; i < size; ++i) {
+            values[i] = random.nextInt();
+        }
+        
+        for (int round = 0; round < 2; ++round) {
+            for (boolean large : new boolean[]{false, true}) {
+                random = new Random(seed);
+                OrderStatisticTree<Integer> orderTree = null;
+                LargeOrderStatisticTree<Integer> largeTree = null;
+                long dummy = 0;
+                
+                //the values are shared, only the tree itself is measured
+                System.gc();
+                long startBytes = runtime.totalMemory() - runtime.freeMemory();
+                long startTime = System.nanoTime();
+                
+                if (large) {
+                    largeTree = new LargeOrderStatisticTree<>();
+                    for (Integer value : values) {
+                        largeTree.add(value);
+                    }
+                } else {
+                    orderTree = new OrderStatisticTree<>();
+                    for (Integer value : values) {
+                        orderTree.add(value);
+                    }
+                }
+                
+                long addTime = System.nanoTime();
+                System.gc();
+                long bytes = runtime.totalMemory() - runtime.freeMemory() - startBytes;
+                long rankStart = System.nanoTime();
+                
+                for (int i = 0; i < queries; ++i) {
+                    Integer value = values[random.nextInt(size)];
+                    dummy += large ? largeTree.rankOf(value) : orderTree.rankOf(value);
+                }
+                
+                //random values may repeat
+                int distinct = large ? (int) largeTree.size() : orderTree.size();
+                long getStart = System.nanoTime();
+                
+                for (int i = 0; i < queries; ++i) {
+                    int rank = 1 + random.nextInt(distinct);
+                    dummy += large ? largeTree.get(rank).size() : orderTree.get(rank).size();
+                }
+                
+                long removeStart = System.nanoTime();
+                
+                for (Integer value : values) {
+                    if (large) {
+                        largeTree.remove(value);
+                    } else {
+                        orderTree.remove(value);
+                    }
+                }
+                
+                long endTime = System.nanoTime();
+                
+                System.out.printf("%s: %.1f bytes per element, add %.2f, rankOf %.2f, get %.2f, "
+                                  + "remove %.2f millseconds, dummy %d\n",
+                                  large ? "LargeOrderStatisticTree" : "OrderStatisticTree",
+                                  (double) bytes / distinct, (addTime - startTime) / 1e6,
+                                  (getStart - rankStart) / 1e6, (removeStart - getStart) / 1e6,
+                                  (endTime - removeStart) / 1e6, dummy);
+            }
+        }
+    }
+    
+    private static void profileMultiset() {
+        final int size = 1_000_000;
+        final int distinct = 1000;
+        Runtime runtime = Runtime.getRuntime();
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        
+        for (int round = 0; round < 2; ++round) {
+            //repeated values either wrapped with a unique id, or counted as copies
+            for (boolean multiset : new boolean[]{false, true}) {
+                OrderStatisticTree<Object> orderTree = new OrderStatisticTree<>(multiset
+                        ? Comparator.comparingInt(value -> (Integer) value)
+                        : Comparator.comparingLong(value -> ((long[]) value)[0]));
+                orderTree.setMultiset(multiset);
+                
+                System.gc();
+                long startUsed = runtime.totalMemory() - runtime.freeMemory();
+                long startBytes = threads.getThreadAllocatedBytes(thread);
+                long startTime = System.nanoTime();
+                
+                for (int i = 0; i < size; ++i) {
+                    int value = i % distinct;
+                    orderTree.add(multiset ? Integer.valueOf(value) : new long[]{value, i});
+                }
+                
+                long endTime = System.nanoTime();
+                long endBytes = threads.getThreadAllocatedBytes(thread);
+                System.gc();
+                long used = runtime.totalMemory() - runtime.freeMemory() - startUsed;
+                
+                System.out.printf("%s: %d adds of %d values in %.2f millseconds, %.1f bytes allocated "
+                                  + "and %.1f retained per add, size %d, healthy: %b\n",
+                                  multiset ? "Multiset" : "Unique ids", size, distinct,
+                                  (endTime - startTime) / 1e6, (double) (endBytes - startBytes) / size,
+                                  (double) used / size, orderTree.size(), orderTree.isHealthy());
+            }
+        }
+    }
+    
     public static void main(String[] args) {
         profileAgainstTreeSet();
+        profileFingerInsertion();
+        profileSketchAccuracy();
+        profileMutations();
+        profileBatchRanks();
+        profileCopy();
+        profileBalancingSchemes();
+        profileLazyDeletion();
+        profileCategories();
+        profileNodePool();
+        profileLargeTree();
+        profileMultiset();
     }
     
     private static Integer get(TreeSet<Integer> set, int index) {
@@ -0,0 +1,457 @@
+package com.mtecresults.ranking;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Single writer front-end for an {@link OrderStatisticTree}.
+ *
+ * Any number of producer threads submit add, remove and replace commands into
+ * a bounded ring buffer, blocking while it is full. One writer thread drains
+ * the buffer in batches of at most maxBatchSize commands, waiting no longer
+ * than maxBatchDelay for a batch to fill, and applies each batch under a
+ * single write lock. Readers use {@link #view()}, which only ever observes the
+ * tree between batches.
+ *
+ * {@link #close()} rejects further commands and returns once every command
+ * accepted before it has been applied. Should the writer thread die, e.g. of
+ * a StackOverflowError from the comparator, the pipeline closes itself:
+ * blocked and later submits throw IllegalStateException and close() returns.
+ *
+ * @param <T> the actual element type.
+ */
+public class IngestPipeline<T> implements AutoCloseable {
+
+    private enum Type { ADD, REMOVE, REPLACE }
+
+    private static final class Command<T> {
+        final Type type;
+        final T element;
+        final T replacement;
+        final long enqueued;
+
+        Command(Type type, T element, T replacement) {
+            this.type = type;
+            this.element = element;
+            this.replacement = replacement;
+            this.enqueued = System.nanoTime();
+        }
+    }
+
+    private final OrderStatisticTree<T> tree;
+    private final BlockingQueue<Command<T>> buffer;
+    private final int maxBatchSize;
+    private final long maxBatchDelayNanos;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReadView view = new ReadView();
+    private final Thread writer;
+    //submit holds the read side while it checks closed and enqueues, close
+    //holds the write side while it sets closed and enqueues the poison pill,
+    //so the pill is always the last command in the buffer
+    private final ReadWriteLock gate = new ReentrantReadWriteLock();
+    private volatile boolean closed = false;
+    //set when the writer exits without reaching the poison pill
+    private volatile boolean writerStopped = false;
+    //how often a blocked producer or close checks that the writer is still running
+    private static final long WRITER_CHECK_MILLIS = 10;
+    //enqueued by close, the writer stops when it reaches it
+    private final Command<T> poison = new Command<>(null, null, null);
+
+    //producer stage
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder backpressureNanos = new LongAdder();
+    //writer stage, only written by the writer thread
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong applyNanos = new AtomicLong();
+    private final AtomicLong maxBatch = new AtomicLong();
+    //end to end, submit until the batch holding the command is published
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    public IngestPipeline(OrderStatisticTree<T> tree, int capacity, int maxBatchSize,
+                          long maxBatchDelay, TimeUnit unit) {
+        if (capacity < 1 || maxBatchSize < 1 || maxBatchDelay < 0) {
+            throw new IllegalArgumentException("Invalid pipeline settings: capacity " + capacity
+                    + ", batch size " + maxBatchSize + ", batch delay " + maxBatchDelay);
+        }
+
+        this.tree = Objects.requireNonNull(tree, "The tree is null.");
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelayNanos = unit.toNanos(maxBatchDelay);
+        this.writer = new Thread(this::drain, "ingest-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    //blocks while the buffer is full
+    public void add(T element) throws InterruptedException {
+        submit(new Command<>(Type.ADD, Objects.requireNonNull(element, "The input element is null."), null));
+    }
+
+    public void remove(T element) throws InterruptedException {
+        submit(new Command<>(Type.REMOVE, Objects.requireNonNull(element, "The input element is null."), null));
+    }
+
+    //remove oldElement and add newElement within the same batch, e.g. a rescore
+    //like MultiRankIndex.replace it changes nothing when oldElement is absent
+    //or newElement cannot be added
+    public void replace(T oldElement, T newElement) throws InterruptedException {
+        submit(new Command<>(Type.REPLACE,
+                Objects.requireNonNull(oldElement, "The old element is null."),
+                Objects.requireNonNull(newElement, "The new element is null.")));
+    }
+
+    private void submit(Command<T> command) throws InterruptedException {
+        gate.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("The pipeline is closed.");
+            }
+
+            if (!buffer.offer(command)) {
+                long start = System.nanoTime();
+                while (!buffer.offer(command, WRITER_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                    checkWriter();
+                }
+                backpressureNanos.add(System.nanoTime() - start);
+            }
+            //the writer may have stopped after its last take, the command is then never applied
+            checkWriter();
+            submitted.increment();
+        } finally {
+            gate.readLock().unlock();
+        }
+    }
+
+    private void checkWriter() {
+        if (writerStopped) {
+            throw new IllegalStateException("The pipeline writer has stopped, the command was not applied.");
+        }
+    }
+
+    //read-only view of the tree as of the last published batch
+    public OrderStatisticSet<T> view() {
+        return view;
+    }
+
+    //number of batches applied so far, readers can use it to detect new data
+    public long publishedBatches() {
+        return batches.get();
+    }
+
+    public Metrics metrics() {
+        return new Metrics(submitted.sum(), backpressureNanos.sum(), buffer.size(),
+                applied.get(), failed.get(), batches.get(), applyNanos.get(), maxBatch.get(),
+                latencyNanos.get(), maxLatencyNanos.get());
+    }
+
+    //stop accepting commands, apply everything already submitted and stop the writer
+    //waits for the writer without being interruptible, an interrupt is kept
+    //pending for the caller
+    @Override
+    public void close() {
+        boolean interrupted = false;
+
+        gate.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            //a dead writer will never make room for the pill
+            while (writer.isAlive()) {
+                try {
+                    if (buffer.offer(poison, WRITER_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            gate.writeLock().unlock();
+
+            while (writer.isAlive()) {
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void drain() {
+        List<Command<T>> batch = new ArrayList<>(maxBatchSize);
+        boolean stopping = false;
+
+        try {
+            while (!stopping) {
+                batch.add(buffer.take());
+                long deadline = batch.get(0).enqueued + maxBatchDelayNanos;
+
+                while (batch.size() < maxBatchSize && batch.get(batch.size() - 1) != poison) {
+                    if (buffer.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                        continue;
+                    }
+
+                    long remaining = deadline - System.nanoTime();
+                    Command<T> next = remaining > 0 ? buffer.poll(remaining, TimeUnit.NANOSECONDS) : null;
+
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                stopping = removePoison(batch);
+                apply(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            //nobody should interrupt the writer, but if it happens stop taking
+            //commands and still apply every one already accepted
+            closed = true;
+            buffer.drainTo(batch);
+            removePoison(batch);
+            apply(batch);
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!stopping) {
+                //interrupted or dead of an Error, nothing takes from the buffer
+                //again: reject new commands, fail blocked producers and make
+                //room so a close() in progress can return
+                closed = true;
+                writerStopped = true;
+                buffer.clear();
+            }
+        }
+    }
+
+    //drop the poison pill from the end of batch, true if it was there
+    private boolean removePoison(List<Command<T>> batch) {
+        if (!batch.isEmpty() && batch.get(batch.size() - 1) == poison) {
+            batch.remove(batch.size() - 1);
+            return true;
+        }
+        return false;
+    }
+
+    private void apply(List<Command<T>> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        int failures = 0;
+
+        lock.writeLock().lock();
+        try {
+            for (Command<T> command : batch) {
+                try {
+                    switch (command.type) {
+                        case ADD:
+                            tree.add(command.element);
+                            break;
+                        case REMOVE:
+                            tree.remove(command.element);
+                            break;
+                        case REPLACE:
+                            applyReplace(command.element, command.replacement);
+                            break;
+                    }
+                } catch (RuntimeException e) {
+                    //a bad element (e.g. one the comparator rejects) must not stop ingestion
+                    failures++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        long published = System.nanoTime();
+        long latency = 0;
+        long maxLatency = 0;
+
+        for (Command<T> command : batch) {
+            long commandLatency = published - command.enqueued;
+            latency += commandLatency;
+            maxLatency = Math.max(maxLatency, commandLatency);
+        }
+
+        applied.addAndGet(batch.size() - failures);
+        failed.addAndGet(failures);
+        applyNanos.addAndGet(published - start);
+        latencyNanos.addAndGet(latency);
+        maxBatch.accumulateAndGet(batch.size(), Math::max);
+        maxLatencyNanos.accumulateAndGet(maxLatency, Math::max);
+        batches.incrementAndGet();
+    }
+
+    //the old element is put back when the new one is present or rejected
+    private void applyReplace(T oldElement, T newElement) {
+        if (!tree.remove(oldElement)) {
+            return;
+        }
+
+        boolean added;
+        try {
+            added = tree.add(newElement);
+        } catch (RuntimeException e) {
+            tree.add(oldElement);
+            throw e;
+        }
+        if (!added) {
+            tree.add(oldElement);
+        }
+    }
+
+    private class ReadView implements OrderStatisticSet<T> {
+
+        @Override
+        public Set<T> get(int rank) {
+            lock.readLock().lock();
+            try {
+                return tree.get(rank);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public int rankOf(T element) {
+            lock.readLock().lock();
+            try {
+                return tree.rankOf(element);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            lock.readLock().lock();
+            try {
+                return tree.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public boolean remove(T o) {
+            throw new UnsupportedOperationException("Submit changes through the pipeline.");
+        }
+
+        @Override
+        public boolean add(T element) {
+            throw new UnsupportedOperationException("Submit changes through the pipeline.");
+        }
+    }
+
+    /**
+     * Throughput and latency counters for each stage of the pipeline.
+     */
+    public static final class Metrics {
+        private final long submitted;
+        private final long backpressureNanos;
+        private final int queued;
+        private final long applied;
+        private final long failed;
+        private final long batches;
+        private final long applyNanos;
+        private final long maxBatchSize;
+        private final long latencyNanos;
+        private final long maxLatencyNanos;
+
+        Metrics(long submitted, long backpressureNanos, int queued, long applied, long failed,
+                long batches, long applyNanos, long maxBatchSize, long latencyNanos, long maxLatencyNanos) {
+            this.submitted = submitted;
+            this.backpressureNanos = backpressureNanos;
+            this.queued = queued;
+            this.applied = applied;
+            this.failed = failed;
+            this.batches = batches;
+            this.applyNanos = applyNanos;
+            this.maxBatchSize = maxBatchSize;
+            this.latencyNanos = latencyNanos;
+            this.maxLatencyNanos = maxLatencyNanos;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        //total time producers spent blocked on a full buffer
+        public long getBackpressureNanos() {
+            return backpressureNanos;
+        }
+
+        public int getQueued() {
+            return queued;
+        }
+
+        public long getApplied() {
+            return applied;
+        }
+
+        //commands whose tree operation threw
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getBatches() {
+            return batches;
+        }
+
+        public long getApplyNanos() {
+            return applyNanos;
+        }
+
+        public long getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        public double getAverageBatchSize() {
+            return batches == 0 ? 0 : (double) (applied + failed) / batches;
+        }
+
+        //applied commands per second of writer time
+        public double getApplyThroughput() {
+            return applyNanos == 0 ? 0 : (applied + failed) * 1e9 / applyNanos;
+        }
+
+        //mean time from submit until the batch holding the command was published
+        public double getAverageLatencyNanos() {
+            return applied + failed == 0 ? 0 : (double) latencyNanos / (applied + failed);
+        }
+
+        public long getMaxLatencyNanos() {
+            return maxLatencyNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("submitted=%d queued=%d applied=%d failed=%d batches=%d avgBatch=%.1f "
+                            + "applyThroughput=%.0f/s avgLatency=%.1fus maxLatency=%.1fus backpressure=%.1fms",
+                    submitted, queued, applied, failed, batches, getAverageBatchSize(), getApplyThroughput(),
+                    getAverageLatencyNanos() / 1e3, maxLatencyNanos / 1e3, backpressureNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.mtecresults.ranking;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Approximate {@link OrderStatisticSet} in bounded memory, based on the KLL
+ * quantile sketch (Karnin, Lang and Liberty).
+ *
+ * Elements are kept in a stack of compactors. An element at level h stands for
+ * 2^h added elements; when a level outgrows its capacity it is sorted and every
+ * other element, starting at a random offset, is promoted to the level above.
+ * Capacities shrink geometrically by 2/3 below the top level, so about 3k
+ * elements are retained whatever the number added, and with probability 0.99
+ * every estimated rank is within {@link #getNormalizedRankError()} * size() of
+ * the exact one.
+ *
+ * rankOf estimates 1 + the number of added elements less than the argument,
+ * which is what {@link OrderStatisticTree} returns for a member; the sketch
+ * cannot tell members from other values, so it never returns -1. get returns
+ * a single retained element whose estimated rank range covers the requested
+ * rank. Elements cannot be removed. size() is exact.
+ *
+ * Sketches are not thread safe, but sketches built on separate threads with
+ * the same k and comparator can be combined with {@link #merge(KllSketch)}.
+ *
+ * @param <T> the actual element type.
+ */
+public class KllSketch<T> implements OrderStatisticSet<T> {
+
+    public static final int DEFAULT_K = 200;
+    public static final int MIN_K = 8;
+
+    //no level is made narrower than this
+    private static final int MIN_WIDTH = 8;
+    private static final double CAPACITY_DECAY = 2.0 / 3.0;
+
+    //empirical fit of the 99% rank error of KLL with these capacities, error = 2.296 / k^0.9723
+    private static final double ERROR_SCALE = 2.296;
+    private static final double ERROR_EXPONENT = 0.9723;
+
+    private final Comparator<? super T> comparator;
+    private final int k;
+    private final Random random;
+    //levels.get(h) holds elements of weight 2^h
+    private final List<List<T>> levels = new ArrayList<>();
+    private long size = 0;
+    private int retained = 0;
+    //total capacity of all levels, changes only when a level is added
+    private int capacity;
+
+    //all retained elements sorted with their cumulative weights, rebuilt lazily after changes
+    private Object[] sorted;
+    private long[] cumulative;
+
+    public KllSketch(Comparator<? super T> comparator) {
+        this(comparator, DEFAULT_K);
+    }
+
+    public KllSketch(Comparator<? super T> comparator, int k) {
+        this(comparator, k, new Random());
+    }
+
+    //random is used to choose which half of a level is promoted, seed it for repeatable results
+    public KllSketch(Comparator<? super T> comparator, int k, Random random) {
+        if (k < MIN_K) {
+            throw new IllegalArgumentException("k must be at least " + MIN_K + ": " + k);
+        }
+
+        this.comparator = Objects.requireNonNull(comparator, "The comparator is null.");
+        this.random = Objects.requireNonNull(random, "The random source is null.");
+        this.k = k;
+        addLevel();
+    }
+
+    //smallest sketch whose normalized rank error is at most epsilon
+    public static <T> KllSketch<T> forEpsilon(Comparator<? super T> comparator, double epsilon) {
+        if (!(epsilon > 0 && epsilon < 1)) {
+            throw new IllegalArgumentException("epsilon must be between 0 and 1: " + epsilon);
+        }
+
+        int k = (int) Math.ceil(Math.pow(ERROR_SCALE / epsilon, 1 / ERROR_EXPONENT));
+        return new KllSketch<>(comparator, Math.max(MIN_K, k));
+    }
+
+    public static double normalizedRankError(int k) {
+        return ERROR_SCALE / Math.pow(k, ERROR_EXPONENT);
+    }
+
+    public double getNormalizedRankError() {
+        return normalizedRankError(k);
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public Comparator<? super T> comparator() {
+        return comparator;
+    }
+
+    //number of elements held in memory
+    public int getRetainedItems() {
+        return retained;
+    }
+
+    @Override
+    public boolean add(T element) {
+        Objects.requireNonNull(element, "The input element is null.");
+
+        levels.get(0).add(element);
+        size++;
+        retained++;
+        sorted = null;
+
+        if (retained > capacity) {
+            compress();
+        }
+        return true;
+    }
+
+    //fold other into this sketch, other is left unchanged
+    public KllSketch<T> merge(KllSketch<? extends T> other) {
+        if (other.k != k) {
+            throw new IllegalArgumentException("Cannot merge sketches with k " + k + " and " + other.k);
+        }
+
+        while (levels.size() < other.levels.size()) {
+            addLevel();
+        }
+        for (int h = 0; h < other.levels.size(); h++) {
+            levels.get(h).addAll(other.levels.get(h));
+        }
+
+        size += other.size;
+        retained += other.retained;
+        sorted = null;
+        compress();
+        return this;
+    }
+
+    @Override
+    public boolean remove(T o) {
+        throw new UnsupportedOperationException("Elements cannot be removed from a sketch.");
+    }
+
+    //exact number of elements added, saturating at Integer.MAX_VALUE
+    @Override
+    public int size() {
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    public long longSize() {
+        return size;
+    }
+
+    //estimated 1 + number of added elements less than element
+    @Override
+    public int rankOf(T element) {
+        Objects.requireNonNull(element, "The input element is null.");
+        ensureSorted();
+
+        //first retained element that is not less than element
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(mid, element) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        long before = low == 0 ? 0 : cumulative[low - 1];
+        return (int) Math.min(before + 1, Integer.MAX_VALUE);
+    }
+
+    //singleton set of the retained element at the estimated rank
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<T> get(int rank) {
+        if (rank < 1 || rank > size) {
+            throw new IndexOutOfBoundsException("Rank " + rank + " is out of range [1, " + size + "]");
+        }
+        ensureSorted();
+
+        //first retained element whose cumulative weight reaches rank
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cumulative[mid] < rank) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return Collections.singleton((T) sorted[low]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(int index, T element) {
+        return comparator.compare((T) sorted[index], element);
+    }
+
+    private int capacity(int level) {
+        int depth = levels.size() - 1 - level;
+        return Math.max(MIN_WIDTH, (int) Math.ceil(k * Math.pow(CAPACITY_DECAY, depth)));
+    }
+
+    private void addLevel() {
+        levels.add(new ArrayList<>());
+
+        capacity = 0;
+        for (int h = 0; h < levels.size(); h++) {
+            capacity += capacity(h);
+        }
+    }
+
+    //compact the lowest full level until everything fits, each pass halves one level
+    private void compress() {
+        while (retained > capacity) {
+            int h = 0;
+            while (levels.get(h).size() < capacity(h)) {
+                h++;
+            }
+            if (h + 1 == levels.size()) {
+                addLevel();
+            }
+            compact(h);
+        }
+    }
+
+    //promote half of an even number of elements of level h, keeping an odd one out behind
+    private void compact(int h) {
+        List<T> level = levels.get(h);
+        List<T> above = levels.get(h + 1);
+        level.sort(comparator);
+
+        int start = level.size() % 2;
+        int offset = random.nextBoolean() ? 1 : 0;
+
+        for (int i = start + offset; i < level.size(); i += 2) {
+            above.add(level.get(i));
+        }
+
+        int promoted = (level.size() - start) / 2;
+        level.subList(start, level.size()).clear();
+        retained -= promoted;
+    }
+
+    private void ensureSorted() {
+        if (sorted != null) {
+            return;
+        }
+
+        Object[] items = new Object[retained];
+        long[] weights = new long[retained];
+        Integer[] order = new Integer[retained];
+        int i = 0;
+
+        for (int h = 0; h < levels.size(); h++) {
+            for (T item : levels.get(h)) {
+                items[i] = item;
+                weights[i] = 1L << h;
+                order[i] = i;
+                i++;
+            }
+        }
+
+        Arrays.sort(order, (a, b) -> compareItems(items[a], items[b]));
+
+        sorted = new Object[retained];
+        cumulative = new long[retained];
+        long total = 0;
+
+        for (i = 0; i < retained; i++) {
+            sorted[i] = items[order[i]];
+            total += weights[order[i]];
+            cumulative[i] = total;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compareItems(Object a, Object b) {
+        return comparator.compare((T) a, (T) b);
+    }
+}
@@ -0,0 +1,400 @@
+package com.mtecresults.ranking;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * AVL order statistic tree with {@code long} counts, ranks and size, for
+ * datasets that may grow past the 2^31 - 1 elements an
+ * {@link OrderStatisticTree} can hold.
+ *
+ * Ranks, ties and ghost ranks behave as in OrderStatisticTree. Only the core
+ * operations are provided: elements are ordered by comparator alone, with no
+ * score function, augmentation, balancing scheme or navigation views, which
+ * keeps each node to 48 bytes with compressed references.
+ *
+ * It is a separate class rather than a mode of OrderStatisticTree because the
+ * balancing schemes, augmentation and categories are all written against the
+ * int counts of {@link Node}, and int trees keep int arithmetic on every path.
+ *
+ * @param <T> the actual element type.
+ */
+public class LargeOrderStatisticTree<T> implements LongOrderStatisticSet<T> {
+
+    private static final class LargeNode<T> {
+        //null while key is the only member, as in Node
+        Set<T> keys;
+        T key;
+        LargeNode<T> parent;
+        LargeNode<T> left;
+        LargeNode<T> right;
+        int height;
+        //number of keys in the left subtree
+        long count;
+
+        LargeNode(T key, LargeNode<T> parent) {
+            this.key = key;
+            this.parent = parent;
+        }
+
+        int size() {
+            return keys == null ? 1 : keys.size();
+        }
+
+        boolean contains(T element) {
+            return keys == null ? key.equals(element) : keys.contains(element);
+        }
+
+        void add(T element) {
+            if (keys == null) {
+                keys = new HashSet<>(4);
+                keys.add(key);
+            }
+            keys.add(element);
+        }
+
+        void remove(T element) {
+            keys.remove(element);
+            if (element.equals(key)) {
+                key = keys.iterator().next();
+            }
+            if (keys.size() == 1) {
+                keys = null;
+            }
+        }
+
+        Set<T> getKeys() {
+            return keys == null ? new HashSet<>(Collections.singleton(key)) : new HashSet<>(keys);
+        }
+    }
+
+    private final Comparator<? super T> comparator;
+    private LargeNode<T> root;
+    private long size;
+
+    //elements are ordered by their natural ordering and must be Comparable
+    @SuppressWarnings("unchecked")
+    public LargeOrderStatisticTree() {
+        this((Comparator<? super T>) Comparator.naturalOrder());
+    }
+
+    public LargeOrderStatisticTree(Comparator<? super T> comparator) {
+        this.comparator = Objects.requireNonNull(comparator, "The comparator is null.");
+    }
+
+    public Comparator<? super T> comparator() {
+        return comparator;
+    }
+
+    @Override
+    public boolean add(T element) {
+        Objects.requireNonNull(element, "The input element is null.");
+
+        if (root == null) {
+            root = new LargeNode<>(element, null);
+            size = 1;
+            return true;
+        }
+
+        LargeNode<T> parent = null;
+        LargeNode<T> node = root;
+        int cmp = 0;
+
+        while (node != null) {
+            cmp = comparator.compare(element, node.key);
+
+            if (cmp == 0) {
+                if (node.contains(element)) {
+                    return false;
+                }
+                node.add(element);
+                size++;
+                addToCounts(node, 1);
+                return true;
+            }
+
+            parent = node;
+            node = cmp < 0 ? node.left : node.right;
+        }
+
+        LargeNode<T> newnode = new LargeNode<>(element, parent);
+        if (cmp < 0) {
+            parent.left = newnode;
+        } else {
+            parent.right = newnode;
+        }
+
+        size++;
+        addToCounts(newnode, 1);
+        fixAfterModification(newnode, true);
+        return true;
+    }
+
+    @Override
+    public boolean remove(T element) {
+        LargeNode<T> node = find(element);
+
+        if (node == null || !node.contains(element)) {
+            return false;
+        }
+
+        size--;
+
+        if (node.size() > 1) {
+            node.remove(element);
+            addToCounts(node, -1);
+            return true;
+        }
+
+        if (node.left != null && node.right != null) {
+            //move the successor's group up into node and unlink the successor,
+            //the group leaves the left subtrees between the two and the
+            //removed key leaves those above node
+            LargeNode<T> successor = node.right;
+            while (successor.left != null) {
+                successor = successor.left;
+            }
+
+            long moved = successor.size();
+            for (LargeNode<T> child = successor, parent = child.parent; parent != node;
+                 child = parent, parent = parent.parent) {
+                if (parent.left == child) {
+                    parent.count -= moved;
+                }
+            }
+            addToCounts(node, -1);
+
+            node.keys = successor.keys;
+            node.key = successor.key;
+            node = successor;
+        } else {
+            addToCounts(node, -1);
+        }
+
+        LargeNode<T> child = node.left != null ? node.left : node.right;
+        LargeNode<T> parent = node.parent;
+
+        if (child != null) {
+            child.parent = parent;
+        }
+        if (parent == null) {
+            root = child;
+        } else if (parent.left == node) {
+            parent.left = child;
+        } else {
+            parent.right = child;
+        }
+
+        fixAfterModification(node, false);
+        return true;
+    }
+
+    public boolean contains(T element) {
+        LargeNode<T> node = find(element);
+        return node != null && node.contains(element);
+    }
+
+    //group at 1 based rank, empty for ranks ghosted by a tie
+    @Override
+    public Set<T> get(long rank) {
+        long index = rank - 1;
+        checkIndex(index);
+
+        LargeNode<T> node = root;
+
+        while (true) {
+            if (index < node.count) {
+                node = node.left;
+            } else if (index >= node.count + node.size()) {
+                index -= node.count + node.size();
+                node = node.right;
+            } else {
+                return index == node.count ? node.getKeys() : Collections.<T>emptySet();
+            }
+        }
+    }
+
+    //1 based rank of element, -1 if not found
+    @Override
+    public long rankOf(T element) {
+        long before = 0;
+        LargeNode<T> node = root;
+
+        while (node != null) {
+            int cmp = comparator.compare(element, node.key);
+
+            if (cmp == 0) {
+                return node.contains(element) ? before + node.count + 1 : -1;
+            } else if (cmp < 0) {
+                node = node.left;
+            } else {
+                before += node.count + node.size();
+                node = node.right;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        root = null;
+        size = 0;
+    }
+
+    //full check of counts, heights, balance and parent links
+    public boolean isHealthy() {
+        return (root == null || root.parent == null) && check(root) == size;
+    }
+
+    //size of the subtree of node, -1 if any invariant is broken
+    private long check(LargeNode<T> node) {
+        if (node == null) {
+            return 0;
+        }
+
+        long left = check(node.left);
+        long right = check(node.right);
+
+        if (left < 0 || right < 0 || left != node.count || node.size() < 1
+                || (node.left != null && node.left.parent != node)
+                || (node.right != null && node.right.parent != node)
+                || node.height != Math.max(height(node.left), height(node.right)) + 1
+                || Math.abs(height(node.left) - height(node.right)) > 1) {
+            return -1;
+        }
+        return left + node.size() + right;
+    }
+
+    private void checkIndex(long index) {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("The input index is negative: " + index);
+        }
+
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("The input index is too large: " + index
+                    + ", the size of this tree is " + size);
+        }
+    }
+
+    private LargeNode<T> find(T element) {
+        LargeNode<T> node = root;
+
+        while (node != null) {
+            int cmp = comparator.compare(element, node.key);
+            if (cmp == 0) {
+                return node;
+            }
+            node = cmp < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    //add delta to the count of every ancestor holding node in its left subtree
+    private static <T> void addToCounts(LargeNode<T> node, long delta) {
+        for (LargeNode<T> parent = node.parent; parent != null; node = parent, parent = parent.parent) {
+            if (parent.left == node) {
+                parent.count += delta;
+            }
+        }
+    }
+
+    private static int height(LargeNode<?> node) {
+        return node == null ? -1 : node.height;
+    }
+
+    private static void updateHeight(LargeNode<?> node) {
+        node.height = Math.max(height(node.left), height(node.right)) + 1;
+    }
+
+    private LargeNode<T> leftRotate(LargeNode<T> node1) {
+        LargeNode<T> node2 = node1.right;
+        node2.parent = node1.parent;
+        node1.parent = node2;
+        node1.right = node2.left;
+        node2.left = node1;
+
+        if (node1.right != null) {
+            node1.right.parent = node1;
+        }
+
+        updateHeight(node1);
+        updateHeight(node2);
+        node2.count += node1.count + node1.size();
+        return node2;
+    }
+
+    private LargeNode<T> rightRotate(LargeNode<T> node1) {
+        LargeNode<T> node2 = node1.left;
+        node2.parent = node1.parent;
+        node1.parent = node2;
+        node1.left = node2.right;
+        node2.right = node1;
+
+        if (node1.left != null) {
+            node1.left.parent = node1;
+        }
+
+        updateHeight(node1);
+        updateHeight(node2);
+        node1.count -= node2.count + node2.size();
+        return node2;
+    }
+
+    // Same walk as OrderStatisticTree with AVL: counts are already correct,
+    // it stops as soon as a subtree keeps both its balance and its height.
+    private void fixAfterModification(LargeNode<T> node, boolean insertionMode) {
+        LargeNode<T> parent = node.parent;
+
+        while (parent != null) {
+            LargeNode<T> grandParent = parent.parent;
+            LargeNode<T> subTree;
+
+            if (height(parent.left) == height(parent.right) + 2) {
+                if (height(parent.left.left) < height(parent.left.right)) {
+                    parent.left = leftRotate(parent.left);
+                }
+                subTree = rightRotate(parent);
+            } else if (height(parent.right) == height(parent.left) + 2) {
+                if (height(parent.right.right) < height(parent.right.left)) {
+                    parent.right = rightRotate(parent.right);
+                }
+                subTree = leftRotate(parent);
+            } else {
+                int height = Math.max(height(parent.left), height(parent.right)) + 1;
+
+                if (height == parent.height) {
+                    return;
+                }
+
+                parent.height = height;
+                parent = grandParent;
+                continue;
+            }
+
+            if (grandParent == null) {
+                root = subTree;
+            } else if (grandParent.left == parent) {
+                grandParent.left = subTree;
+            } else {
+                grandParent.right = subTree;
+            }
+
+            if (insertionMode) {
+                return;
+            }
+
+            parent = grandParent;
+        }
+    }
+}
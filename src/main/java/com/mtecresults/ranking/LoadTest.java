@@ -0,0 +1,594 @@
+package com.mtecresults.ranking;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Mixed workload load test for any {@link OrderStatisticSet}, reporting
+ * throughput and latency percentiles per operation.
+ *
+ * Reader threads mix rank lookups of Zipf-distributed participants (a few
+ * are looked up far more often than the rest), leaderboard page reads skewed
+ * towards the top pages, and "around me" reads of the ranks next to a
+ * participant. Writer threads add finishers in bursts with nearly sorted
+ * finish times and rescore finished participants by removing and re-adding
+ * them with a corrected time.
+ *
+ * The implementation under test is chosen with the impl setting, see
+ * {@link #create(Workload)}, so the same workload can compare them.
+ * Settings are given as key=value arguments, see {@link Workload}, e.g.
+ * {@code gradle loadTest -PloadTestImpl=large -PloadTestArgs="readers=8 writers=2 seconds=30"}.
+ * Latency is measured per call, a closed loop, so stalls are not corrected
+ * for coordinated omission.
+ */
+public final class LoadTest {
+
+    //results of reads end up here so the JIT cannot discard them
+    private static volatile long blackhole;
+
+    private LoadTest() {
+    }
+
+    private enum Op { RANK_LOOKUP, PAGE_READ, AROUND_ME, FINISH, RESCORE }
+
+    static final class Participant {
+        final int id;
+        final long time;
+
+        Participant(int id, long time) {
+            this.id = id;
+            this.time = time;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Participant && ((Participant) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+    }
+
+    /**
+     * Load test settings, each field can be overridden by a key=value argument.
+     */
+    static final class Workload {
+        //tree: OrderStatisticTree, large: LargeOrderStatisticTree, sketch:
+        //KllSketch (add only, needs rescoreFraction=0), pipeline: IngestPipeline
+        //writes with reads from its view
+        String impl = "tree";
+        //rw: ReadWriteLock around the set, sync: one exclusive lock, not used by pipeline
+        String lock = "rw";
+        int readers = 4;
+        int writers = 1;
+        int participants = 1_000_000;
+        int initial = 500_000;
+        int warmupSeconds = 5;
+        int seconds = 20;
+        //relative weights of the read operations
+        int rankLookupWeight = 70;
+        int pageReadWeight = 20;
+        int aroundMeWeight = 10;
+        double zipfExponent = 1.0;
+        int pageSize = 50;
+        int aroundMe = 5;
+        //fraction of writes that rescore rather than add a finisher, with 0
+        //a writer stops once every participant it owns has finished
+        double rescoreFraction = 0.2;
+        //finishers added back to back before a writer pauses
+        int burstSize = 500;
+        int burstPauseMillis = 50;
+
+        void set(String key, String value) {
+            try {
+                Field field = Workload.class.getDeclaredField(key);
+                if (field.getType() == int.class) {
+                    field.setInt(this, Integer.parseInt(value));
+                } else if (field.getType() == double.class) {
+                    field.setDouble(this, Double.parseDouble(value));
+                } else {
+                    field.set(this, value);
+                }
+            } catch (NoSuchFieldException | IllegalAccessException e) {
+                throw new IllegalArgumentException("Unknown setting: " + key);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (Field field : Workload.class.getDeclaredFields()) {
+                try {
+                    builder.append(field.getName()).append('=').append(field.get(this)).append(' ');
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return builder.toString().trim();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Workload workload = new Workload();
+
+        for (String arg : args) {
+            for (String setting : arg.trim().split("\\s+")) {
+                if (setting.isEmpty()) {
+                    continue;
+                }
+                int split = setting.indexOf('=');
+                if (split < 0) {
+                    throw new IllegalArgumentException("Expected key=value: " + setting);
+                }
+                workload.set(setting.substring(0, split), setting.substring(split + 1));
+            }
+        }
+
+        OrderStatisticSet<Participant> set = create(workload);
+
+        System.out.println("Workload: " + workload);
+        try {
+            run(set, workload);
+        } finally {
+            close(set);
+        }
+    }
+
+    //release a set from create, e.g. stop a pipeline's writer thread
+    static void close(OrderStatisticSet<Participant> set) {
+        if (set instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) set).close();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    //the implementation named by workload.impl, safe for concurrent use
+    static OrderStatisticSet<Participant> create(Workload workload) {
+        Comparator<Participant> byTime = Comparator.comparingLong(p -> p.time);
+        OrderStatisticSet<Participant> set;
+
+        switch (workload.impl) {
+            case "tree":
+                set = new OrderStatisticTree<>(byTime, p -> p.time);
+                break;
+            case "large":
+                set = new LongSetAdapter<>(new LargeOrderStatisticTree<>(byTime));
+                break;
+            case "sketch":
+                if (workload.rescoreFraction > 0) {
+                    throw new IllegalArgumentException("A sketch cannot remove, set rescoreFraction=0");
+                }
+                set = new KllSketch<>(byTime);
+                break;
+            case "pipeline":
+                return new PipelineSet<>(new IngestPipeline<>(new OrderStatisticTree<>(byTime, p -> p.time),
+                        4096, 256, 1, TimeUnit.MILLISECONDS));
+            default:
+                throw new IllegalArgumentException("Unknown implementation: " + workload.impl);
+        }
+
+        return "sync".equals(workload.lock)
+                ? new LockedSet<>(set, new ReentrantLock())
+                : new LockedSet<>(set, new ReentrantReadWriteLock());
+    }
+
+    //run workload against set, which must be safe for concurrent use
+    static void run(OrderStatisticSet<Participant> set, Workload workload) throws InterruptedException {
+        if (workload.initial > workload.participants) {
+            throw new IllegalArgumentException("More initial finishers than participants.");
+        }
+
+        //current finish time of each participant, 0 while not finished
+        AtomicLongArray times = new AtomicLongArray(workload.participants);
+        AtomicLong raceClock = new AtomicLong();
+
+        for (int id = 0; id < workload.initial; id++) {
+            long time = finishTime(raceClock);
+            times.set(id, time);
+            set.add(new Participant(id, time));
+        }
+
+        ZipfSampler participantSampler = new ZipfSampler(workload.participants, workload.zipfExponent);
+        ZipfSampler pageSampler = new ZipfSampler(
+                Math.max(1, workload.participants / workload.pageSize), workload.zipfExponent);
+
+        long warmupEnd = System.nanoTime() + workload.warmupSeconds * 1_000_000_000L;
+        long end = warmupEnd + workload.seconds * 1_000_000_000L;
+        List<LatencyHistogram[]> results = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+
+        for (int r = 0; r < workload.readers; r++) {
+            LatencyHistogram[] histograms = histograms();
+            results.add(histograms);
+            threads.add(new Thread(() -> {
+                await(start);
+                read(set, workload, times, participantSampler, pageSampler, histograms, warmupEnd, end);
+            }, "reader-" + r));
+        }
+
+        for (int w = 0; w < workload.writers; w++) {
+            LatencyHistogram[] histograms = histograms();
+            results.add(histograms);
+            int partition = w;
+            threads.add(new Thread(() -> {
+                await(start);
+                write(set, workload, times, raceClock, partition, histograms, warmupEnd, end);
+            }, "writer-" + w));
+        }
+
+        //a dead thread would leave a report of a different workload, fail the run instead
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler((t, e) -> failure.compareAndSet(null, e));
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("A load test thread failed.", failure.get());
+        }
+
+        Map<Op, LatencyHistogram> totals = new LinkedHashMap<>();
+        for (Op op : Op.values()) {
+            LatencyHistogram total = new LatencyHistogram();
+            for (LatencyHistogram[] histograms : results) {
+                total.add(histograms[op.ordinal()]);
+            }
+            totals.put(op, total);
+        }
+
+        System.out.printf("Finished with %d participants ranked.\n", set.size());
+        for (Map.Entry<Op, LatencyHistogram> entry : totals.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            System.out.printf("%-12s %10.0f ops/s  %s\n", entry.getKey(),
+                    (double) histogram.getCount() / workload.seconds, histogram);
+        }
+    }
+
+    private static void read(OrderStatisticSet<Participant> set, Workload workload, AtomicLongArray times,
+                             ZipfSampler participantSampler, ZipfSampler pageSampler,
+                             LatencyHistogram[] histograms, long warmupEnd, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int totalWeight = workload.rankLookupWeight + workload.pageReadWeight + workload.aroundMeWeight;
+        long sink = 0;
+
+        for (long now = System.nanoTime(); now < end; ) {
+            int pick = random.nextInt(totalWeight);
+            Op op;
+
+            if (pick < workload.rankLookupWeight) {
+                op = Op.RANK_LOOKUP;
+                int id = participantSampler.sample(random);
+                sink += set.rankOf(new Participant(id, times.get(id)));
+            } else if (pick < workload.rankLookupWeight + workload.pageReadWeight) {
+                op = Op.PAGE_READ;
+                int first = pageSampler.sample(random) * workload.pageSize + 1;
+                sink += readRanks(set, first, first + workload.pageSize - 1);
+            } else {
+                op = Op.AROUND_ME;
+                int id = participantSampler.sample(random);
+                int rank = set.rankOf(new Participant(id, times.get(id)));
+                if (rank > 0) {
+                    sink += readRanks(set, rank - workload.aroundMe, rank + workload.aroundMe);
+                }
+            }
+
+            long done = System.nanoTime();
+            if (now >= warmupEnd) {
+                histograms[op.ordinal()].record(done - now);
+            }
+            now = done;
+        }
+
+        blackhole += sink;
+    }
+
+    //read the groups at ranks from..to that exist, the set may shrink meanwhile
+    private static int readRanks(OrderStatisticSet<Participant> set, int from, int to) {
+        int read = 0;
+        for (int rank = Math.max(1, from); rank <= to; rank++) {
+            try {
+                read += set.get(rank).size();
+            } catch (IndexOutOfBoundsException e) {
+                break;
+            }
+        }
+        return read;
+    }
+
+    //writer w owns the participants whose id % writers == w
+    private static void write(OrderStatisticSet<Participant> set, Workload workload, AtomicLongArray times,
+                              AtomicLong raceClock, int w, LatencyHistogram[] histograms,
+                              long warmupEnd, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int writers = workload.writers;
+        //the first finished ids of this partition have finished
+        int finished = Math.max(0, (workload.initial - w + writers - 1) / writers);
+        int owned = Math.max(0, (workload.participants - w + writers - 1) / writers);
+        int burst = 0;
+
+        for (long now = System.nanoTime(); now < end; ) {
+            Op op;
+
+            if (finished < owned && (finished == 0 || random.nextDouble() >= workload.rescoreFraction)) {
+                op = Op.FINISH;
+                int id = w + finished * writers;
+                long time = finishTime(raceClock);
+                times.set(id, time);
+                set.add(new Participant(id, time));
+                finished++;
+            } else if (finished > 0 && workload.rescoreFraction > 0) {
+                op = Op.RESCORE;
+                int id = w + random.nextInt(finished) * writers;
+                long old = times.get(id);
+                long time = Math.max(1, old + random.nextLong(-1000, 1001));
+                set.remove(new Participant(id, old));
+                times.set(id, time);
+                set.add(new Participant(id, time));
+            } else {
+                //every owned participant finished and none is rescored
+                return;
+            }
+
+            long done = System.nanoTime();
+            if (now >= warmupEnd) {
+                histograms[op.ordinal()].record(done - now);
+            }
+
+            if (op == Op.FINISH && ++burst == workload.burstSize) {
+                burst = 0;
+                sleep(workload.burstPauseMillis);
+                done = System.nanoTime();
+            }
+            now = done;
+        }
+    }
+
+    //finishers arrive about every 10ms of race time, up to 5s out of order
+    private static long finishTime(AtomicLong raceClock) {
+        return 1 + raceClock.getAndIncrement() * 10 + ThreadLocalRandom.current().nextInt(5_000);
+    }
+
+    private static LatencyHistogram[] histograms() {
+        LatencyHistogram[] histograms = new LatencyHistogram[Op.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(int millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Samples 0..n-1 with probability proportional to 1 / (i + 1)^exponent.
+     */
+    static final class ZipfSampler {
+        private final double[] cumulative;
+
+        ZipfSampler(int n, double exponent) {
+            cumulative = new double[n];
+            double total = 0;
+            for (int i = 0; i < n; i++) {
+                total += 1 / Math.pow(i + 1, exponent);
+                cumulative[i] = total;
+            }
+            for (int i = 0; i < n; i++) {
+                cumulative[i] /= total;
+            }
+        }
+
+        int sample(ThreadLocalRandom random) {
+            double u = random.nextDouble();
+            int low = 0;
+            int high = cumulative.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cumulative[mid] < u) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Makes any {@link OrderStatisticSet} safe for concurrent use with a
+     * ReadWriteLock, or with one exclusive lock for comparison.
+     */
+    static final class LockedSet<T> implements OrderStatisticSet<T> {
+        private final OrderStatisticSet<T> set;
+        private final Lock readLock;
+        private final Lock writeLock;
+
+        LockedSet(OrderStatisticSet<T> set, ReadWriteLock lock) {
+            this.set = set;
+            this.readLock = lock.readLock();
+            this.writeLock = lock.writeLock();
+        }
+
+        LockedSet(OrderStatisticSet<T> set, Lock lock) {
+            this.set = set;
+            this.readLock = lock;
+            this.writeLock = lock;
+        }
+
+        @Override
+        public Set<T> get(int rank) {
+            readLock.lock();
+            try {
+                return set.get(rank);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public int rankOf(T element) {
+            readLock.lock();
+            try {
+                return set.rankOf(element);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            readLock.lock();
+            try {
+                return set.size();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean add(T element) {
+            writeLock.lock();
+            try {
+                return set.add(element);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean remove(T element) {
+            writeLock.lock();
+            try {
+                return set.remove(element);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * {@link LongOrderStatisticSet} seen as an OrderStatisticSet, for sets of
+     * fewer than 2^31 elements.
+     */
+    static final class LongSetAdapter<T> implements OrderStatisticSet<T> {
+        private final LongOrderStatisticSet<T> set;
+
+        LongSetAdapter(LongOrderStatisticSet<T> set) {
+            this.set = set;
+        }
+
+        @Override
+        public Set<T> get(int rank) {
+            return set.get(rank);
+        }
+
+        @Override
+        public int rankOf(T element) {
+            return Math.toIntExact(set.rankOf(element));
+        }
+
+        @Override
+        public int size() {
+            return Math.toIntExact(set.size());
+        }
+
+        @Override
+        public boolean add(T element) {
+            return set.add(element);
+        }
+
+        @Override
+        public boolean remove(T element) {
+            return set.remove(element);
+        }
+    }
+
+    /**
+     * Writes submitted to an {@link IngestPipeline}, reads from its view, so
+     * write latency is the time to enqueue a command.
+     */
+    static final class PipelineSet<T> implements OrderStatisticSet<T>, AutoCloseable {
+        private final IngestPipeline<T> pipeline;
+
+        PipelineSet(IngestPipeline<T> pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        @Override
+        public Set<T> get(int rank) {
+            return pipeline.view().get(rank);
+        }
+
+        @Override
+        public int rankOf(T element) {
+            return pipeline.view().rankOf(element);
+        }
+
+        @Override
+        public int size() {
+            return pipeline.view().size();
+        }
+
+        //the outcome is only known once the batch is applied
+        @Override
+        public boolean add(T element) {
+            try {
+                pipeline.add(element);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean remove(T element) {
+            try {
+                pipeline.remove(element);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            pipeline.close();
+        }
+    }
+}
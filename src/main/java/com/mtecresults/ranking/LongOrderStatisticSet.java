@@ -0,0 +1,18 @@
+package com.mtecresults.ranking;
+
+import java.util.Set;
+
+//OrderStatisticSet with long ranks and size, for more than 2^31 - 1 elements
+public interface LongOrderStatisticSet<T> {
+
+    Set<T> get(long rank);
+
+    //based 1 rank of an element in set, ties are allowed
+    long rankOf(T element);
+
+    boolean remove(T o);
+
+    long size();
+
+    boolean add(T element);
+}
@@ -0,0 +1,293 @@
+package com.mtecresults.ranking;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Several rankings of the same elements, e.g. overall, by gender, by age group
+ * and by team, kept in step by a single update.
+ *
+ * Each index has its own ordering and a partition function choosing the
+ * division an element is ranked in; every division is an
+ * {@link OrderStatisticTree} holding the same element references. Indexes
+ * created with the same score function instance share one evaluation of it
+ * per update.
+ *
+ * Updates are all or nothing: if any tree rejects an element part way through
+ * (for example its comparator throws) the trees already changed are rolled
+ * back before the exception is rethrown. The partition and ordering of an
+ * element must not change while it is in the index.
+ *
+ * Divisions of the overall ordering drawn from a small fixed set can instead
+ * be counted inside one tree, see
+ * {@link OrderStatisticTree#OrderStatisticTree(Comparator, java.util.function.ToIntFunction, int)}.
+ *
+ * @param <T> the actual element type.
+ */
+public class MultiRankIndex<T> {
+
+    private static final class Index<T> {
+        final String name;
+        final Comparator<? super T> comparator;
+        final ToLongFunction<? super T> scoreFunction;
+        final Function<? super T, ?> partition;
+        //position in the per-update score array, shared by equal score functions
+        final int scoreSlot;
+        final Map<Object, OrderStatisticTree<T>> divisions = new HashMap<>();
+
+        Index(String name, Comparator<? super T> comparator, ToLongFunction<? super T> scoreFunction,
+              Function<? super T, ?> partition, int scoreSlot) {
+            this.name = name;
+            this.comparator = comparator;
+            this.scoreFunction = scoreFunction;
+            this.partition = partition;
+            this.scoreSlot = scoreSlot;
+        }
+
+        OrderStatisticTree<T> division(T element) {
+            return divisions.get(partition.apply(element));
+        }
+
+        //add element to its division, a new division is only registered once
+        //the add has succeeded so a failed add leaves no empty tree behind
+        void add(T element, long score) {
+            Object key = partition.apply(element);
+            OrderStatisticTree<T> tree = divisions.get(key);
+
+            if (tree == null) {
+                tree = new OrderStatisticTree<>(comparator, scoreFunction);
+                tree.add(element, score);
+                divisions.put(key, tree);
+            } else {
+                tree.add(element, score);
+            }
+        }
+
+        //remove element from its division, dropping the division once empty
+        void remove(T element, long score) {
+            Object key = partition.apply(element);
+            OrderStatisticTree<T> tree = divisions.get(key);
+
+            tree.remove(element, score);
+            if (tree.isEmpty()) {
+                divisions.remove(key);
+            }
+        }
+    }
+
+    private final List<Index<T>> indexes = new ArrayList<>();
+    private final List<ToLongFunction<? super T>> scoreFunctions = new ArrayList<>();
+    private int size;
+
+    //index ranking every element in one division
+    public MultiRankIndex<T> addIndex(String name, Comparator<? super T> comparator) {
+        return addIndex(name, comparator, null, element -> null);
+    }
+
+    public MultiRankIndex<T> addIndex(String name, Comparator<? super T> comparator,
+                                      Function<? super T, ?> partition) {
+        return addIndex(name, comparator, null, partition);
+    }
+
+    //scoreFunction has the same meaning as for OrderStatisticTree and may be null
+    public MultiRankIndex<T> addIndex(String name, Comparator<? super T> comparator,
+                                      ToLongFunction<? super T> scoreFunction, Function<? super T, ?> partition) {
+        Objects.requireNonNull(name, "The index name is null.");
+        Objects.requireNonNull(comparator, "The comparator is null.");
+        Objects.requireNonNull(partition, "The partition function is null.");
+
+        if (size > 0) {
+            throw new IllegalStateException("Indexes must be added before any element.");
+        }
+        for (Index<T> index : indexes) {
+            if (index.name.equals(name)) {
+                throw new IllegalArgumentException("Duplicate index name: " + name);
+            }
+        }
+
+        int scoreSlot = -1;
+        if (scoreFunction != null) {
+            scoreSlot = scoreFunctions.indexOf(scoreFunction);
+            if (scoreSlot < 0) {
+                scoreSlot = scoreFunctions.size();
+                scoreFunctions.add(scoreFunction);
+            }
+        }
+
+        indexes.add(new Index<>(name, comparator, scoreFunction, partition, scoreSlot));
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(T element) {
+        checkIndexes();
+        OrderStatisticTree<T> tree = indexes.get(0).division(element);
+        return tree != null && tree.contains(element);
+    }
+
+    //add element to its division of every index
+    public boolean add(T element) {
+        Objects.requireNonNull(element, "The input element is null.");
+
+        if (contains(element)) {
+            return false;
+        }
+
+        long[] scores = scores(element);
+        int applied = 0;
+
+        try {
+            for (; applied < indexes.size(); applied++) {
+                Index<T> index = indexes.get(applied);
+                index.add(element, score(index, scores));
+            }
+        } catch (RuntimeException e) {
+            removeFrom(element, scores, applied);
+            throw e;
+        }
+
+        size++;
+        return true;
+    }
+
+    //remove element from every index
+    public boolean remove(T element) {
+        Objects.requireNonNull(element, "The input element is null.");
+
+        if (!contains(element)) {
+            return false;
+        }
+
+        long[] scores = scores(element);
+        int applied = 0;
+
+        try {
+            for (; applied < indexes.size(); applied++) {
+                Index<T> index = indexes.get(applied);
+                index.remove(element, score(index, scores));
+            }
+        } catch (RuntimeException e) {
+            addTo(element, scores, applied);
+            throw e;
+        }
+
+        size--;
+        return true;
+    }
+
+    //swap oldElement for newElement in every index, e.g. a rescored result
+    //returns false and changes nothing when oldElement is absent or newElement present
+    public boolean replace(T oldElement, T newElement) {
+        Objects.requireNonNull(oldElement, "The old element is null.");
+        Objects.requireNonNull(newElement, "The new element is null.");
+
+        if (!contains(oldElement) || (!oldElement.equals(newElement) && contains(newElement))) {
+            return false;
+        }
+
+        remove(oldElement);
+        try {
+            add(newElement);
+        } catch (RuntimeException e) {
+            add(oldElement);
+            throw e;
+        }
+        return true;
+    }
+
+    //rank of element in its division of every index, keyed by index name,
+    //-1 for an element that is not indexed
+    public Map<String, Integer> ranksOf(T element) {
+        checkIndexes();
+        long[] scores = scores(element);
+        Map<String, Integer> ranks = new LinkedHashMap<>();
+
+        for (Index<T> index : indexes) {
+            OrderStatisticTree<T> tree = index.division(element);
+            ranks.put(index.name, tree == null ? -1 : tree.rankOf(element, score(index, scores)));
+        }
+        return ranks;
+    }
+
+    //rank of element in its division of the named index, -1 if not indexed
+    public int rankOf(String indexName, T element) {
+        Index<T> index = index(indexName);
+        OrderStatisticTree<T> tree = index.division(element);
+        return tree == null ? -1 : tree.rankOf(element);
+    }
+
+    //tie group at rank within division of the named index, see OrderStatisticTree.get
+    public Set<T> get(String indexName, Object division, int rank) {
+        OrderStatisticTree<T> tree = index(indexName).divisions.get(division);
+        if (tree == null) {
+            throw new IndexOutOfBoundsException("The division " + division + " is empty.");
+        }
+        return tree.get(rank);
+    }
+
+    //number of elements in division of the named index
+    public int size(String indexName, Object division) {
+        OrderStatisticTree<T> tree = index(indexName).divisions.get(division);
+        return tree == null ? 0 : tree.size();
+    }
+
+    public Set<Object> divisions(String indexName) {
+        return Collections.unmodifiableSet(index(indexName).divisions.keySet());
+    }
+
+    private Index<T> index(String name) {
+        for (Index<T> index : indexes) {
+            if (index.name.equals(name)) {
+                return index;
+            }
+        }
+        throw new IllegalArgumentException("No index named " + name);
+    }
+
+    private void checkIndexes() {
+        if (indexes.isEmpty()) {
+            throw new IllegalStateException("No index has been added.");
+        }
+    }
+
+    //every distinct score function evaluated once for element
+    private long[] scores(T element) {
+        long[] scores = new long[scoreFunctions.size()];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = scoreFunctions.get(i).applyAsLong(element);
+        }
+        return scores;
+    }
+
+    private static <T> long score(Index<T> index, long[] scores) {
+        return index.scoreSlot < 0 ? 0L : scores[index.scoreSlot];
+    }
+
+    //undo the first count adds of element
+    private void removeFrom(T element, long[] scores, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            Index<T> index = indexes.get(i);
+            index.remove(element, score(index, scores));
+        }
+    }
+
+    //undo the first count removes of element
+    private void addTo(T element, long[] scores, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            Index<T> index = indexes.get(i);
+            index.add(element, score(index, scores));
+        }
+    }
+}
@@ -1,13 +1,32 @@
 package com.mtecresults.ranking;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
-public class Node<T extends Comparable<? super T>> implements Comparable<T> {
-    //set of all keys where A.compareTo(B) == 0, but !A.equals(B)
+public class Node<T> {
+    //keys of a tombstone left behind by lazy deletion
+    private static final Set<Object> DEAD = Collections.emptySet();
+
+    //set of all keys where compare(A, B) == 0, but !A.equals(B)
+    //null while key is the only member, so the common single key node needs
+    //no HashSet and can be copied without allocating one
     //this set must ALWAYS BE NON-EMPTY - any removal from the set that would
-    //make it empty must result in the removal of this Node
-    private Set<T> keys = new HashSet<>(1);
+    //make it empty must result in the removal of this Node, or in lazy
+    //deletion mode turn it into a tombstone with size() 0
+    private Set<T> keys;
+    //any member of keys, kept so descents compare without creating an iterator
+    //a tombstone keeps its last key here to stay in place in the ordering
+    private T key;
+    //primary sort key of every member of keys when the tree has a score function
+    long score;
+    //multiplicity - 1 of each key added more than once to a multiset tree,
+    //held in a mutable int[1] so repeated adds do not box, null if none
+    private Map<T, int[]> repeats;
+    //sum of the values in repeats, size() counts every copy
+    private int extra;
 
     Node<T> parent = null;
     Node<T> left = null;
@@ -15,44 +34,241 @@ public class Node<T extends Comparable<? super T>> implements Comparable<T> {
 
     int height = 0;
     int count = 0;
+    //aggregate of every key in this subtree when the tree has an Augmentation
+    Object aggregate;
+    //aggregate of the keys of this node alone, kept up to date by the tree as
+    //keys come and go so that recomputing aggregate never visits the tie set
+    Object ownAggregate;
+    //number of keys of each category in this subtree when the tree has categories
+    int[] categoryCounts;
+    //number of keys of each category in this node alone, kept up to date by
+    //the tree, null until the node holds a second key or copy, key() alone
+    //is counted until then
+    int[] ownCategoryCounts;
+
+    Node(final T key, final long score) {
+        this.key = key;
+        this.score = score;
+    }
 
-    Node(final T key) {
-        //initialize HashSet with capacity 1 - we do not expect duplicates to be common
-        //single entry is expected normal case
-        add(key);
+    //copy of the keys, score, height, counts and aggregate of other, without links
+    Node(final Node<T> other) {
+        this.keys = other.keys == null || other.isDead() ? other.keys : new HashSet<>(other.keys);
+        this.key = other.key;
+        this.score = other.score;
+        if (other.repeats != null) {
+            this.repeats = new HashMap<>(other.repeats.size() * 2);
+            for (Map.Entry<T, int[]> entry : other.repeats.entrySet()) {
+                this.repeats.put(entry.getKey(), entry.getValue().clone());
+            }
+        }
+        this.extra = other.extra;
+        this.height = other.height;
+        this.count = other.count;
+        this.aggregate = other.aggregate;
+        this.ownAggregate = other.ownAggregate;
+        this.categoryCounts = other.categoryCounts == null ? null : other.categoryCounts.clone();
+        this.ownCategoryCounts = other.ownCategoryCounts == null ? null : other.ownCategoryCounts.clone();
     }
 
-    @Override
-    public int compareTo(T o) {
-        //choose an arbitrary entry from keys - they all have same compareTo value
-        //and keys must be non-empty so we can choose first from iterator
-        return -1 * o.compareTo(keys.iterator().next());
+    //an arbitrary entry from keys - they all compare equal
+    T key() {
+        return key;
     }
 
     public boolean contains(T element){
-        return keys.contains(element);
+        return keys == null ? key.equals(element) : keys.contains(element);
     }
 
-    //element.compareTo(A), A any member of keys must == 0
+    //compare(element, A), A any member of keys must == 0
+    //revives a tombstone
     public void add(final T element){
+        add(element, null);
+    }
+
+    //add, taking spare, an empty set or null, as the tie set if one is needed
+    void add(final T element, final Set<T> spare){
+        if (isDead()) {
+            key = element;
+            keys = null;
+            return;
+        }
+        if (keys == null) {
+            if (key.equals(element)) {
+                return;
+            }
+            keys = spare != null ? spare : new HashSet<>(4);
+            keys.add(key);
+        }
         keys.add(element);
     }
 
     //must not remove single element - node must be deleted in this case
     public boolean remove(final T element){
-        return keys.remove(element);
+        if (keys == null) {
+            if (key.equals(element)) {
+                throw new IllegalStateException("The only key of a node cannot be removed.");
+            }
+            return false;
+        }
+
+        boolean removed = keys.remove(element);
+        if (removed && element.equals(key)) {
+            key = keys.iterator().next();
+        }
+        if (keys.size() == 1) {
+            keys = null;
+        }
+        return removed;
+    }
+
+    //another copy of element, which must already be a member
+    void addCopy(final T element) {
+        if (repeats == null) {
+            repeats = new HashMap<>(2);
+        }
+        int[] copies = repeats.get(element);
+        if (copies == null) {
+            repeats.put(element, new int[]{1});
+        } else {
+            copies[0]++;
+        }
+        extra++;
+    }
+
+    //remove one copy of element if it has more than one, false otherwise
+    boolean removeCopy(final T element) {
+        int[] copies = repeats == null ? null : repeats.get(element);
+        if (copies == null) {
+            return false;
+        }
+
+        if (--copies[0] == 0) {
+            repeats.remove(element);
+            if (repeats.isEmpty()) {
+                repeats = null;
+            }
+        }
+        extra--;
+        return true;
     }
 
+    //number of copies of key, which must be a member
+    int multiplicity(final T key) {
+        if (repeats == null) {
+            return 1;
+        }
+        int[] copies = repeats.get(key);
+        return copies == null ? 1 : copies[0] + 1;
+    }
+
+    //number of keys, counting every copy of a key in a multiset tree
     public int size() {
-        return keys.size();
+        return keyCount() + extra;
+    }
+
+    //number of distinct keys
+    int keyCount() {
+        return keys == null ? 1 : keys.size();
+    }
+
+    //turn a single key node into a tombstone holding no keys
+    @SuppressWarnings("unchecked")
+    void kill() {
+        if (keys != null) {
+            throw new IllegalStateException("Only a single key node can become a tombstone.");
+        }
+        keys = (Set<T>) DEAD;
+    }
+
+    boolean isDead() {
+        return keys == DEAD;
+    }
+
+    //the set holding the keys of a tie group, null for a single key or a tombstone
+    Set<T> tieSet() {
+        return keys == null || isDead() ? null : keys;
+    }
+
+    //reinitialize a pooled node for a new key, its category count array is
+    //kept, the tree recomputes it before use
+    void reset(final T key, final long score) {
+        this.key = key;
+        this.score = score;
+        keys = null;
+        repeats = null;
+        extra = 0;
+        parent = null;
+        height = 0;
+        count = 0;
+        ownCategoryCounts = null;
+    }
+
+    //drop every reference before the node goes into a pool
+    void release() {
+        keys = null;
+        key = null;
+        repeats = null;
+        extra = 0;
+        parent = null;
+        left = null;
+        right = null;
+        aggregate = null;
+        ownAggregate = null;
+        ownCategoryCounts = null;
+    }
+
+    //live view of keys for internal iteration, must not be modified
+    Set<T> keySet() {
+        return keys == null ? Collections.singleton(key) : keys;
     }
 
     public Set<T> getKeys() {
         //return a copy
+        if (keys == null) {
+            Set<T> copy = new HashSet<>(1);
+            copy.add(key);
+            return copy;
+        }
         return new HashSet<>(keys);
     }
 
     public void setKeys(final Set<T> keys){
-        this.keys = keys;
+        this.key = keys.iterator().next();
+        this.keys = keys.size() == 1 ? null : keys;
+        this.repeats = null;
+        this.extra = 0;
+    }
+
+    //exchange keys, copies, score, own aggregate and own category counts with
+    //other, leaving tree links untouched
+    void swapKeys(final Node<T> other){
+        Set<T> tmpKeys = keys;
+        keys = other.keys;
+        other.keys = tmpKeys;
+
+        T tmpKey = key;
+        key = other.key;
+        other.key = tmpKey;
+
+        long tmpScore = score;
+        score = other.score;
+        other.score = tmpScore;
+
+        Map<T, int[]> tmpRepeats = repeats;
+        repeats = other.repeats;
+        other.repeats = tmpRepeats;
+
+        int tmpExtra = extra;
+        extra = other.extra;
+        other.extra = tmpExtra;
+
+        Object tmpOwn = ownAggregate;
+        ownAggregate = other.ownAggregate;
+        other.ownAggregate = tmpOwn;
+
+        int[] tmpOwnCounts = ownCategoryCounts;
+        ownCategoryCounts = other.ownCategoryCounts;
+        other.ownCategoryCounts = tmpOwnCounts;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,409 @@
+package com.mtecresults.ranking;
+
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.SortedSet;
+
+/**
+ * {@link NavigableSet} view of an {@link OrderStatisticTree}, without copying.
+ *
+ * Sub-set views are live and bounded like those of {@link java.util.TreeSet};
+ * their size() is computed in O(log n) from the node counts rather than by
+ * iterating. Iterators are fail-fast.
+ *
+ * Elements that tie under the comparator but are not equal are all members of
+ * the set. Iteration returns them one after another in no particular order,
+ * and methods returning a single element (first, floor, ...) return an
+ * arbitrary member of the matching tie group.
+ *
+ * A multiset tree has no set view, its copies would be duplicate members,
+ * the view throws IllegalStateException once its tree is a multiset.
+ *
+ * @param <T> the actual element type.
+ */
+public class OrderStatisticNavigableSet<T> extends AbstractSet<T> implements NavigableSet<T> {
+
+    private final OrderStatisticTree<T> tree;
+    //bounds are in ascending order regardless of descending
+    private final boolean fromStart;
+    private final T lo;
+    private final boolean loInclusive;
+    private final boolean toEnd;
+    private final T hi;
+    private final boolean hiInclusive;
+    private final boolean descending;
+
+    public OrderStatisticNavigableSet(OrderStatisticTree<T> tree) {
+        this(Objects.requireNonNull(tree, "The tree is null."), true, null, true, true, null, true, false);
+        checkSet();
+    }
+
+    private OrderStatisticNavigableSet(OrderStatisticTree<T> tree, boolean fromStart, T lo, boolean loInclusive,
+                                       boolean toEnd, T hi, boolean hiInclusive, boolean descending) {
+        this.tree = tree;
+        this.fromStart = fromStart;
+        this.lo = lo;
+        this.loInclusive = loInclusive;
+        this.toEnd = toEnd;
+        this.hi = hi;
+        this.hiInclusive = hiInclusive;
+        this.descending = descending;
+    }
+
+    //a view taken while the tree was empty outlives a switch to multiset mode
+    private void checkSet() {
+        if (tree.isMultiset()) {
+            throw new IllegalStateException("A multiset tree cannot be viewed as a set.");
+        }
+    }
+
+    private int compare(T a, T b) {
+        return tree.comparator().compare(a, b);
+    }
+
+    private boolean tooLow(T element) {
+        if (fromStart) {
+            return false;
+        }
+        int cmp = compare(element, lo);
+        return cmp < 0 || (cmp == 0 && !loInclusive);
+    }
+
+    private boolean tooHigh(T element) {
+        if (toEnd) {
+            return false;
+        }
+        int cmp = compare(element, hi);
+        return cmp > 0 || (cmp == 0 && !hiInclusive);
+    }
+
+    private boolean inRange(T element) {
+        return !tooLow(element) && !tooHigh(element);
+    }
+
+    private boolean inClosedRange(T element) {
+        return (fromStart || compare(element, lo) >= 0) && (toEnd || compare(element, hi) <= 0);
+    }
+
+    private boolean inRange(T element, boolean inclusive) {
+        return inclusive ? inRange(element) : inClosedRange(element);
+    }
+
+    //navigation in ascending order, restricted to the bounds of this view
+
+    private Node<T> absLowest() {
+        Node<T> node = fromStart ? tree.firstNode() : tree.nearestNode(lo, false, loInclusive, null);
+        return node == null || tooHigh(node.key()) ? null : node;
+    }
+
+    private Node<T> absHighest() {
+        Node<T> node = toEnd ? tree.lastNode() : tree.nearestNode(hi, true, hiInclusive, null);
+        return node == null || tooLow(node.key()) ? null : node;
+    }
+
+    private Node<T> absCeiling(T element, boolean inclusive) {
+        if (tooLow(element)) {
+            return absLowest();
+        }
+        Node<T> node = tree.nearestNode(element, false, inclusive, null);
+        return node == null || tooHigh(node.key()) ? null : node;
+    }
+
+    private Node<T> absFloor(T element, boolean inclusive) {
+        if (tooHigh(element)) {
+            return absHighest();
+        }
+        Node<T> node = tree.nearestNode(element, true, inclusive, null);
+        return node == null || tooLow(node.key()) ? null : node;
+    }
+
+    private static <T> T keyOrNull(Node<T> node) {
+        return node == null ? null : node.key();
+    }
+
+    private static <T> T keyOrThrow(Node<T> node) {
+        if (node == null) {
+            throw new NoSuchElementException();
+        }
+        return node.key();
+    }
+
+    private T poll(Node<T> node) {
+        if (node == null) {
+            return null;
+        }
+        T key = node.key();
+        tree.remove(key);
+        return key;
+    }
+
+    @Override
+    public int size() {
+        checkSet();
+        if (fromStart && toEnd) {
+            return tree.size();
+        }
+
+        int below = fromStart ? 0 : tree.countBefore(lo, !loInclusive);
+        int upTo = toEnd ? tree.size() : tree.countBefore(hi, hiInclusive);
+        return Math.max(0, upTo - below);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return fromStart && toEnd ? tree.isEmpty() : absLowest() == null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean contains(Object o) {
+        try {
+            T element = (T) o;
+            return o != null && inRange(element) && tree.contains(element);
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean add(T element) {
+        checkSet();
+        if (!inRange(element)) {
+            throw new IllegalArgumentException("The element is out of range.");
+        }
+        return tree.add(element);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean remove(Object o) {
+        checkSet();
+        try {
+            T element = (T) o;
+            return o != null && inRange(element) && tree.remove(element);
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void clear() {
+        if (fromStart && toEnd) {
+            tree.clear();
+        } else {
+            super.clear();
+        }
+    }
+
+    @Override
+    public Comparator<? super T> comparator() {
+        return descending ? Collections.reverseOrder(tree.comparator()) : tree.comparator();
+    }
+
+    @Override
+    public T first() {
+        return keyOrThrow(descending ? absHighest() : absLowest());
+    }
+
+    @Override
+    public T last() {
+        return keyOrThrow(descending ? absLowest() : absHighest());
+    }
+
+    @Override
+    public T lower(T element) {
+        return keyOrNull(descending ? absCeiling(element, false) : absFloor(element, false));
+    }
+
+    @Override
+    public T floor(T element) {
+        return keyOrNull(descending ? absCeiling(element, true) : absFloor(element, true));
+    }
+
+    @Override
+    public T ceiling(T element) {
+        return keyOrNull(descending ? absFloor(element, true) : absCeiling(element, true));
+    }
+
+    @Override
+    public T higher(T element) {
+        return keyOrNull(descending ? absFloor(element, false) : absCeiling(element, false));
+    }
+
+    @Override
+    public T pollFirst() {
+        return poll(descending ? absHighest() : absLowest());
+    }
+
+    @Override
+    public T pollLast() {
+        return poll(descending ? absLowest() : absHighest());
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        checkSet();
+        return new GroupIterator(descending);
+    }
+
+    @Override
+    public Iterator<T> descendingIterator() {
+        checkSet();
+        return new GroupIterator(!descending);
+    }
+
+    @Override
+    public NavigableSet<T> descendingSet() {
+        return new OrderStatisticNavigableSet<>(tree, fromStart, lo, loInclusive, toEnd, hi, hiInclusive,
+                !descending);
+    }
+
+    @Override
+    public NavigableSet<T> subSet(T fromElement, boolean fromInclusive, T toElement, boolean toInclusive) {
+        if (descending) {
+            return subView(false, toElement, toInclusive, false, fromElement, fromInclusive);
+        }
+        return subView(false, fromElement, fromInclusive, false, toElement, toInclusive);
+    }
+
+    @Override
+    public NavigableSet<T> headSet(T toElement, boolean inclusive) {
+        if (descending) {
+            return subView(false, toElement, inclusive, toEnd, hi, hiInclusive);
+        }
+        return subView(fromStart, lo, loInclusive, false, toElement, inclusive);
+    }
+
+    @Override
+    public NavigableSet<T> tailSet(T fromElement, boolean inclusive) {
+        if (descending) {
+            return subView(fromStart, lo, loInclusive, false, fromElement, inclusive);
+        }
+        return subView(false, fromElement, inclusive, toEnd, hi, hiInclusive);
+    }
+
+    @Override
+    public SortedSet<T> subSet(T fromElement, T toElement) {
+        return subSet(fromElement, true, toElement, false);
+    }
+
+    @Override
+    public SortedSet<T> headSet(T toElement) {
+        return headSet(toElement, false);
+    }
+
+    @Override
+    public SortedSet<T> tailSet(T fromElement) {
+        return tailSet(fromElement, true);
+    }
+
+    //new view with bounds given in ascending order, which must lie within this view
+    private NavigableSet<T> subView(boolean fromStart, T lo, boolean loInclusive,
+                                    boolean toEnd, T hi, boolean hiInclusive) {
+        if (!fromStart && !toEnd && compare(lo, hi) > 0) {
+            throw new IllegalArgumentException("fromElement > toElement");
+        }
+        if (!fromStart && !inRange(Objects.requireNonNull(lo), loInclusive)) {
+            throw new IllegalArgumentException("fromElement out of range");
+        }
+        if (!toEnd && !inRange(Objects.requireNonNull(hi), hiInclusive)) {
+            throw new IllegalArgumentException("toElement out of range");
+        }
+        return new OrderStatisticNavigableSet<>(tree, fromStart, lo, loInclusive, toEnd, hi, hiInclusive,
+                descending);
+    }
+
+    //walks tie groups in order, copying each group's keys into a reused buffer
+    //so that removing through the iterator cannot disturb the walk
+    private class GroupIterator implements Iterator<T> {
+
+        private final boolean reverse;
+        private Node<T> nextNode;
+        private Object[] group = new Object[1];
+        private int groupLength = 0;
+        private int groupIndex = 0;
+        private T lastReturned = null;
+        private int expectedModCount = tree.modCount();
+
+        GroupIterator(boolean reverse) {
+            this.reverse = reverse;
+            this.nextNode = reverse ? absHighest() : absLowest();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return groupIndex < groupLength || nextNode != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (tree.modCount() != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            if (groupIndex == groupLength) {
+                if (nextNode == null) {
+                    throw new NoSuchElementException();
+                }
+                load(nextNode);
+                nextNode = advance(nextNode);
+            }
+
+            lastReturned = (T) group[groupIndex++];
+            return lastReturned;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void remove() {
+            if (lastReturned == null) {
+                throw new IllegalStateException();
+            }
+            if (tree.modCount() != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            tree.remove(lastReturned);
+            lastReturned = null;
+            expectedModCount = tree.modCount();
+
+            //the removal may have moved keys between nodes, find the next group again
+            if (nextNode != null) {
+                T groupKey = (T) group[0];
+                nextNode = reverse ? absFloor(groupKey, false) : absCeiling(groupKey, false);
+            }
+        }
+
+        private void load(Node<T> node) {
+            int size = node.size();
+
+            if (size == 1) {
+                group[0] = node.key();
+            } else {
+                if (group.length < size) {
+                    group = new Object[size];
+                }
+                node.keySet().toArray(group);
+            }
+
+            groupLength = size;
+            groupIndex = 0;
+        }
+
+        private Node<T> advance(Node<T> node) {
+            Node<T> next = reverse ? tree.predecessor(node) : tree.successor(node);
+
+            if (next == null || (reverse ? tooLow(next.key()) : tooHigh(next.key()))) {
+                return null;
+            }
+            return next;
+        }
+    }
+}
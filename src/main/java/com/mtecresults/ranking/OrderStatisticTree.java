@@ -1,79 +1,395 @@
 package com.mtecresults.ranking;
 
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 
 /**
  * This class implements an order statistic tree which is based on AVL-trees.
+ * Other balancing algorithms can be chosen with a {@link BalancingScheme}.
  *
  * @author Rodion "rodde" Efremov
  * @version 1.6 (Feb 11, 2016)
  * @param <T> the actual element type.
  */
-public class OrderStatisticTree<T extends Comparable<? super T>>
-        implements OrderStatisticSet<T> {
-
+public class OrderStatisticTree<T> implements OrderStatisticSet<T> {
+
+    private final Comparator<? super T> comparator;
+    //optional primary sort key, compared before falling back to comparator
+    private final ToLongFunction<? super T> scoreFunction;
+    //optional per subtree aggregate, the aggregate type is only known to the caller
+    private final Augmentation<? super T, Object> augmentation;
+    private final BalancingScheme scheme;
+    private final Balancer balancer;
+    //optional category of each element in 0..categories - 1, counted per subtree
+    private final ToIntFunction<? super T> categorizer;
+    private final int categories;
     private Node<T> root;
     private int size;
+    //incremented by every change, lets iterators fail fast
+    private int modCount;
+    private boolean validating;
+    //non-null while the top ranks are cached
+    private RankCache<T> rankCache;
+    //nodes holding the least and greatest keys
+    private Node<T> min;
+    private Node<T> max;
+    //most recently inserted node, where addFromFinger starts its search
+    private Node<T> finger;
+    //remove() leaves tombstones instead of unlinking nodes, see setLazyDeletion
+    private boolean lazyDeletion;
+    private double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    //nodes left empty by lazy deletion, their key still orders them
+    private int tombstones;
+    //nodes released by remove linked through their parent fields, and emptied
+    //tie sets, kept for reuse by add up to nodePoolCapacity each
+    private int nodePoolCapacity;
+    private Node<T> freeNodes;
+    private int freeNodeCount;
+    private ArrayDeque<Set<T>> freeTieSets;
+    //adding a present element counts another copy of it, see setMultiset
+    private boolean multiset;
+
+    //compaction is O(n), by default it is never run on the removal path
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 1;
+
+    //elements are ordered by their natural ordering and must be Comparable
+    @SuppressWarnings("unchecked")
+    public OrderStatisticTree() {
+        this((Comparator<? super T>) Comparator.naturalOrder());
+    }
+
+    public OrderStatisticTree(Comparator<? super T> comparator) {
+        this(comparator, null);
+    }
+
+    //scoreFunction must agree with comparator: score(a) < score(b) implies
+    //compare(a, b) < 0, its value is cached in each node and compared as a
+    //primitive long first, comparator only breaks ties between equal scores
+    public OrderStatisticTree(Comparator<? super T> comparator, ToLongFunction<? super T> scoreFunction) {
+        this(comparator, scoreFunction, null);
+    }
+
+    //augmentation is kept up to date for every subtree so that aggregate() and
+    //aggregateBelow() answer in O(log n), scoreFunction may be null
+    public <A> OrderStatisticTree(Comparator<? super T> comparator, ToLongFunction<? super T> scoreFunction,
+                                  Augmentation<? super T, A> augmentation) {
+        this(comparator, scoreFunction, augmentation, BalancingScheme.AVL);
+    }
+
+    //scheme trades read speed against the cost of changes, see BalancingScheme,
+    //scoreFunction and augmentation may be null
+    @SuppressWarnings("unchecked")
+    public <A> OrderStatisticTree(Comparator<? super T> comparator, ToLongFunction<? super T> scoreFunction,
+                                  Augmentation<? super T, A> augmentation, BalancingScheme scheme) {
+        this(comparator, scoreFunction, augmentation, scheme, null, 0);
+    }
+
+    //categorizer puts every element in one of categories categories, e.g.
+    //gender or age group, so that rankOf(element, category) and
+    //get(rank, category) rank within a category of the overall ordering
+    public OrderStatisticTree(Comparator<? super T> comparator, ToIntFunction<? super T> categorizer,
+                              int categories) {
+        this(comparator, null, null, BalancingScheme.AVL, categorizer, categories);
+    }
+
+    //every option, each node then holds an int per category, tie groups two, the category of
+    //an element must not change while it is in the tree
+    @SuppressWarnings("unchecked")
+    public <A> OrderStatisticTree(Comparator<? super T> comparator, ToLongFunction<? super T> scoreFunction,
+                                  Augmentation<? super T, A> augmentation, BalancingScheme scheme,
+                                  ToIntFunction<? super T> categorizer, int categories) {
+        if (categorizer != null && categories < 1) {
+            throw new IllegalArgumentException("The number of categories must be positive: " + categories);
+        }
+
+        this.comparator = Objects.requireNonNull(comparator, "The comparator is null.");
+        this.scoreFunction = scoreFunction;
+        this.augmentation = (Augmentation<? super T, Object>) augmentation;
+        this.scheme = Objects.requireNonNull(scheme, "The balancing scheme is null.");
+        this.balancer = scheme.balancer();
+        this.categorizer = categorizer;
+        this.categories = categorizer == null ? 0 : categories;
+    }
+
+    public BalancingScheme getBalancingScheme() {
+        return scheme;
+    }
+
+    public Comparator<? super T> comparator() {
+        return comparator;
+    }
+
+    private long score(T element) {
+        return scoreFunction == null ? 0L : scoreFunction.applyAsLong(element);
+    }
+
+    private int compare(T a, long aScore, T b, long bScore) {
+        if (scoreFunction != null) {
+            int cmp = Long.compare(aScore, bScore);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return comparator.compare(a, b);
+    }
+
+    //compare element against the keys of node
+    private int compare(T element, long score, Node<T> node) {
+        if (scoreFunction != null) {
+            int cmp = Long.compare(score, node.score);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return comparator.compare(element, node.key());
+    }
 
     @Override
     public boolean add(T element) {
         Objects.requireNonNull(element, "The input element is null.");
+        return add(element, score(element));
+    }
+
+    //add with the score of element already computed by the caller
+    //counts are raised on the way down, assuming element is new, and put back
+    //if it turns out to be present already or a comparison throws
+    boolean add(T element, long score) {
+        checkCapacity();
+        checkCategory(element);
 
         if (root == null) {
-            root = new Node<>(element);
-            size = 1;
+            addRoot(element, score);
             return true;
         }
 
         Node<T> parent = null;
         Node<T> node = root;
-        int cmp;
+        //number of keys ordered before the subtree of node
+        int before = 0;
+        int cmp = 0;
+
+        try {
+            while (node != null) {
+                cmp = compare(element, score, node);
+
+                if (cmp == 0) {
+                    if(node.contains(element) && !multiset) {
+                        // The element is already in this tree.
+                        decrementChildren(node.parent, node);
+                        return false;
+                    }
+                    else{
+                        // The element needs to be added to this node
+                        addToNode(node, element);
+                        size++;
+                        modCount++;
+                        pullToRoot(node);
+                        invalidateRanks(before + node.count + 1);
+                        validate(node);
+                        refreshRankCache();
+                        return true;
+                    }
+                }
+
+                parent = node;
+
+                if (cmp < 0) {
+                    node.count++;
+                    node = node.left;
+                } else {
+                    before += node.count + node.size();
+                    node = node.right;
+                }
+            }
+        } catch (RuntimeException e) {
+            undoDescent(parent, node, cmp, 1);
+            throw e;
+        }
+
+        Node<T> newnode = attach(parent, cmp, element, score);
+        invalidateRanks(before + 1);
+
+        balancer.afterInsert(this, newnode);
+        pullToRoot(newnode);
+        validate(newnode);
+        refreshRankCache();
+        return true;
+    }
+
+    //add starting the search from the most recently inserted node instead of root
+    //for nearly sorted input comparisons are O(log d), d the distance from
+    //that node, and appends past the maximum touch no counts above it
+    public boolean addFromFinger(T element) {
+        Objects.requireNonNull(element, "The input element is null.");
+        Node<T> start = finger != null ? finger : max;
+
+        if (start == null) {
+            return add(element);
+        }
+        checkCapacity();
+        checkCategory(element);
+
+        long score = score(element);
+        int cmp = compare(element, score, start);
+        Node<T> top = start;
+
+        //climb to the lowest ancestor whose key range holds element, the range of
+        //a subtree is bounded by the nearest ancestor it hangs to the left (right) of
+        if (cmp > 0 && start != max) {
+            for (Node<T> node = start; node.parent != null; node = node.parent) {
+                if (node.parent.left == node) {
+                    int c = compare(element, score, node.parent);
+                    if (c < 0) {
+                        break;
+                    }
+                    top = node.parent;
+                    if (c == 0) {
+                        break;
+                    }
+                }
+            }
+        } else if (cmp < 0) {
+            for (Node<T> node = start; node.parent != null; node = node.parent) {
+                if (node.parent.right == node) {
+                    int c = compare(element, score, node.parent);
+                    if (c > 0) {
+                        break;
+                    }
+                    top = node.parent;
+                    if (c == 0) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        //ancestors of a node on the right spine hold it in their right subtree,
+        //so their counts cannot change
+        Node<T> stop = start == max ? top.parent : null;
+        Node<T> parent = null;
+        Node<T> node = top;
 
         while (node != null) {
-            cmp = -1 * node.compareTo(element);
+            cmp = compare(element, score, node);
 
             if (cmp == 0) {
-                if(node.contains(element)) {
-                    // The element is already in this tree.
+                if (node.contains(element) && !multiset) {
                     return false;
                 }
-                else{
-                    // The element needs to be added to this node
-                    node.add(element);
-                    size++;
-                    incrementChildren(node.parent, node);
-                    return true;
-                }
+                addTie(node, element, stop);
+                pullToRoot(node);
+                invalidateRanks(node);
+                validate(node);
+                refreshRankCache();
+                return true;
             }
 
             parent = node;
+            node = cmp < 0 ? node.left : node.right;
+        }
 
-            if (cmp < 0) {
-                node = node.left;
-            } else {
-                node = node.right;
+        Node<T> newnode = attach(parent, cmp, element, score);
+        incrementChildren(parent, newnode, stop);
+        invalidateRanks(newnode);
+
+        balancer.afterInsert(this, newnode);
+        pullToRoot(newnode);
+        validate(newnode);
+        refreshRankCache();
+        return true;
+    }
+
+    private void addRoot(T element, long score) {
+        root = newNode(element, score);
+        size = 1;
+        modCount++;
+        balancer.init(root);
+        balancer.afterInsert(this, root);
+        pullToRoot(root);
+        min = root;
+        max = root;
+        finger = root;
+        invalidateRanks(1);
+        refreshRankCache();
+    }
+
+    //add element to the tie group of node, counts are updated up to stop
+    private void addTie(Node<T> node, T element, Node<T> stop) {
+        addToNode(node, element);
+        size++;
+        modCount++;
+        incrementChildren(node.parent, node, stop);
+    }
+
+    //another copy of a member in a multiset tree, otherwise a new tie or the
+    //revival of a tombstone
+    private void addToNode(Node<T> node, T element) {
+        boolean revived = node.isDead();
+
+        if (revived) {
+            tombstones--;
+            node.add(element, null);
+        } else if (node.contains(element)) {
+            node.addCopy(element);
+        } else {
+            node.add(element, node.keyCount() == 1 ? takeTieSet() : null);
+        }
+
+        if (augmentation != null) {
+            Object lifted = augmentation.lift(element);
+            node.ownAggregate = revived ? lifted : augmentation.combine(node.ownAggregate, lifted);
+        }
+        if (categorizer != null) {
+            int[] own = node.ownCategoryCounts;
+            if (own == null && !revived) {
+                //second key or copy, count the first one explicitly from now on
+                own = node.ownCategoryCounts = new int[categories];
+                own[categorizer.applyAsInt(node.key())]++;
+            }
+            if (own != null) {
+                own[categorizer.applyAsInt(element)]++;
             }
         }
+    }
 
-        Node<T> newnode = new Node<>(element);
+    //link a new node for element below parent, cmp is element compared with parent
+    //counts and rebalancing are left to the caller
+    private Node<T> attach(Node<T> parent, int cmp, T element, long score) {
+        Node<T> newnode = newNode(element, score);
+        balancer.init(newnode);
 
-        if (-1 * parent.compareTo(element) < 0) {
+        if (cmp < 0) {
             parent.left = newnode;
+            if (parent == min) {
+                min = newnode;
+            }
         } else {
             parent.right = newnode;
+            if (parent == max) {
+                max = newnode;
+            }
         }
 
         newnode.parent = parent;
         size++;
-
-        incrementChildren(parent, newnode);
-
-        fixAfterModification(newnode, true);
-        return true;
+        modCount++;
+        finger = newnode;
+        pull(newnode);
+        return newnode;
     }
 
-    private void incrementChildren(Node<T> hi, Node<T> lo){
-        while (hi != null) {
+    //increment the count of every node between lo and stop (exclusive)
+    //that has lo in its left subtree, stop == null walks all the way to root
+    private void incrementChildren(Node<T> hi, Node<T> lo, Node<T> stop){
+        while (hi != stop) {
             if (hi.left == lo) {
                 hi.count++;
             }
@@ -84,9 +400,29 @@ public class OrderStatisticTree<T extends Comparable<? super T>>
     }
 
     private void decrementChildren(Node<T> hi, Node<T> lo){
-        while (hi != null) {
+        decrementChildren(hi, lo, null, 1);
+    }
+
+    //put back the counts changed by delta on the way down from root, node is
+    //where the descent stopped or null when it fell off below parent, cmp being
+    //the comparison that chose the missing child
+    private void undoDescent(Node<T> parent, Node<T> node, int cmp, int delta) {
+        if (node != null) {
+            decrementChildren(node.parent, node, null, delta);
+        } else if (parent != null) {
+            if (cmp < 0) {
+                parent.count -= delta;
+            }
+            decrementChildren(parent.parent, parent, null, delta);
+        }
+    }
+
+    //decrement by amount the count of every node between lo and stop (exclusive)
+    //that has lo in its left subtree, stop == null walks all the way to root
+    private void decrementChildren(Node<T> hi, Node<T> lo, Node<T> stop, int amount){
+        while (hi != stop) {
             if (hi.left == lo) {
-                hi.count--;
+                hi.count -= amount;
             }
 
             lo = hi;
@@ -96,56 +432,224 @@ public class OrderStatisticTree<T extends Comparable<? super T>>
 
     @Override
     public boolean remove(T element) {
+        return remove(element, score(element));
+    }
+
+    //remove with the score of element already computed by the caller
+    //counts are lowered on the way down, assuming element is present, and put
+    //back if it is missing or a comparison throws
+    boolean remove(T element, long score) {
+        Node<T> parent = null;
         Node<T> x = root;
-        int cmp;
+        int before = 0;
+        int cmp = 0;
 
-        while (x != null && (cmp = -1 * x.compareTo(element)) != 0) {
-            if (cmp < 0) {
-                x = x.left;
-            } else {
-                x = x.right;
+        try {
+            while (x != null && (cmp = compare(element, score, x)) != 0) {
+                parent = x;
+
+                if (cmp < 0) {
+                    x.count--;
+                    x = x.left;
+                } else {
+                    before += x.count + x.size();
+                    x = x.right;
+                }
             }
+        } catch (RuntimeException e) {
+            undoDescent(parent, x, cmp, -1);
+            throw e;
         }
 
         if (x == null || !x.contains(element)) {
+            undoDescent(parent, x, cmp, -1);
             return false;
         }
 
+        invalidateRanks(before + x.count + 1);
+        modCount++;
+
         if(x.size() > 1){
-            //remove this entry from node, leaving it non-empty
-            x.remove(element);
+            //remove one copy or this entry from node, leaving it non-empty
+            Set<T> ties = x.tieSet();
+            if (!x.removeCopy(element)) {
+                x.remove(element);
+            }
+            if (ties != null && x.tieSet() == null) {
+                recycleTieSet(ties);
+            }
+            if (augmentation != null) {
+                //combine has no inverse, the group is folded again once here
+                //rather than on every pull above it
+                x.ownAggregate = foldOwnAggregate(x);
+            }
+            uncountCategory(x, element);
+            decrementSize();
+            pullToRoot(x);
+            validate(x);
+            refreshRankCache();
+            return true;
+        }
+
+        if (lazyDeletion) {
+            //leave the node in place, the counts above it already exclude its key
+            x.kill();
+            tombstones++;
+            if (augmentation != null) {
+                x.ownAggregate = augmentation.identity();
+            }
+            uncountCategory(x, element);
             decrementSize();
-            decrementChildren(x.parent, x);
+            pullToRoot(x);
+            validate(x);
+            refreshRankCache();
+            if (tombstones > compactionThreshold * (size + tombstones)) {
+                compact();
+            }
             return true;
         }
 
         x = deleteNode(x);
-        fixAfterModification(x, false);
+        balancer.afterDelete(this, x);
+        pullToRoot(x.parent);
         decrementSize();
+        if (x == finger) {
+            finger = null;
+        }
+        if (x == min) {
+            min = root == null ? null : minimumNode(root);
+        }
+        if (x == max) {
+            max = root == null ? null : maximumNode(root);
+        }
+        validate(x.parent != null ? x.parent : root);
+        refreshRankCache();
+        recycle(x);
         return true;
     }
 
+    //keep up to capacity nodes released by remove, and as many tie sets
+    //emptied down to one key, for reuse by add, so that sustained churn stops
+    //allocating; 0, the default, disables pooling and drops the pool
+    public void setNodePoolCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("The node pool capacity is negative: " + capacity);
+        }
+
+        nodePoolCapacity = capacity;
+        for (; freeNodeCount > capacity; freeNodeCount--) {
+            freeNodes = freeNodes.parent;
+        }
+        if (capacity == 0) {
+            freeTieSets = null;
+        } else if (freeTieSets == null) {
+            freeTieSets = new ArrayDeque<>();
+        } else {
+            while (freeTieSets.size() > capacity) {
+                freeTieSets.pollFirst();
+            }
+        }
+    }
+
+    public int getNodePoolCapacity() {
+        return nodePoolCapacity;
+    }
+
+    public int getPooledNodeCount() {
+        return freeNodeCount;
+    }
+
+    private Node<T> newNode(T element, long score) {
+        Node<T> node = freeNodes;
+        if (node == null) {
+            node = new Node<>(element, score);
+        } else {
+            freeNodes = node.parent;
+            freeNodeCount--;
+            node.reset(element, score);
+        }
+
+        if (augmentation != null) {
+            node.ownAggregate = augmentation.lift(element);
+        }
+        return node;
+    }
+
+    //pool node once nothing in the tree refers to it
+    private void recycle(Node<T> node) {
+        if (freeNodeCount < nodePoolCapacity) {
+            node.release();
+            node.parent = freeNodes;
+            freeNodes = node;
+            freeNodeCount++;
+        }
+    }
+
+    private Set<T> takeTieSet() {
+        return freeTieSets == null ? null : freeTieSets.pollFirst();
+    }
+
+    private void recycleTieSet(Set<T> ties) {
+        if (freeTieSets != null && freeTieSets.size() < nodePoolCapacity) {
+            ties.clear();
+            freeTieSets.addFirst(ties);
+        }
+    }
+
     @Override
     //get based on place - 1 based
     //may return empty set if there is a tie so intermediate place does not exist
     public Set<T> get(int index) {
+        if (rankCache != null && index >= 1 && index <= size) {
+            Set<T> cached = rankCache.get(index);
+
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         //adjust index supplied to be 0 based internally
         index--;
 
         checkIndex(index);
+        return select(index);
+    }
+
+    //group at 0 based index without the rank cache, safe for concurrent readers
+    private Set<T> select(int index) {
         Node<T> node = root;
 
         while (true) {
             if(node == null){
                 return Collections.EMPTY_SET;
             }
-            if (index > node.count) {
+            if (index < node.count) {
+                node = node.left;
+            } else if (index >= node.count + node.size()) {
                 index -= node.count + node.size();
                 node = node.right;
-            } else if (index < node.count) {
+            } else {
+                //positions after the first of a tie group are ghosts
+                return index == node.count ? node.getKeys() : Collections.<T>emptySet();
+            }
+        }
+    }
+
+    //node whose group covers 0 based position index, its first rank is
+    //stored in rank[0], index must be valid
+    private Node<T> selectNode(int index, int[] rank) {
+        Node<T> node = root;
+        int before = 0;
+
+        while (true) {
+            if (index < before + node.count) {
                 node = node.left;
+            } else if (index >= before + node.count + node.size()) {
+                before += node.count + node.size();
+                node = node.right;
             } else {
-                return node.getKeys();
+                rank[0] = before + node.count + 1;
+                return node;
             }
         }
     }
@@ -163,6 +667,11 @@ public class OrderStatisticTree<T extends Comparable<? super T>>
     //1 based rank of element in tree
     //return -1 if not found
     public int rankOf(T element) {
+        return rankOf(element, score(element));
+    }
+
+    //rankOf with the score of element already computed by the caller
+    int rankOf(T element, long score) {
         Node<T> node = root;
 
         if (root == null) {
@@ -173,7 +682,7 @@ public class OrderStatisticTree<T extends Comparable<? super T>>
         int cmp;
 
         while (true) {
-            cmp = -1 * node.compareTo(element);
+            cmp = compare(element, score, node);
             if (cmp < 0) {
                 if (node.left == null) {
                     return -1;
@@ -203,344 +712,1612 @@ public class OrderStatisticTree<T extends Comparable<? super T>>
         return rank;
     }
 
-    @Override
-    public int size() {
-        return size;
-    }
-
-    private void decrementSize() {
-        if (size > 0) {
-            size--;
+    //ranks covered by the tie group of element, null if not found
+    public RankInterval rankInterval(T element) {
+        long group = locateGroup(element);
+        if (group < 0) {
+            return null;
         }
-    }
 
+        int first = (int) (group >>> 32);
+        return new RankInterval(first, first + (int) group - 1);
+    }
 
-    //minimum value is 0, max is size-1
-    //note that values in between may not have entries because of ties
-    //which live at one index, but "ghost" multiple other indexes
-    private void checkIndex(int index) {
-        if (index < 0) {
-            throw new IndexOutOfBoundsException(
-                    "The input index is negative: " + index);
+    //writes first rank, last rank and tie count of the group of element into
+    //interval[0..2] without allocating, returns false and leaves interval
+    //untouched if element is not found
+    public boolean rankInterval(T element, int[] interval) {
+        if (interval.length < 3) {
+            throw new IllegalArgumentException("The interval array needs 3 elements: " + interval.length);
         }
 
-        if (index >= size) {
-            throw new IndexOutOfBoundsException(
-                    "The input index is too large: " + index +
-                            ", the size of this tree is " + size);
+        long group = locateGroup(element);
+        if (group < 0) {
+            return false;
         }
-    }
 
-    private Node<T> deleteNode(Node<T> node) {
-        if (node.left == null && node.right == null) {
-            // 'node' has no children.
-            Node<T> parent = node.parent;
+        interval[0] = (int) (group >>> 32);
+        interval[2] = (int) group;
+        interval[1] = interval[0] + interval[2] - 1;
+        return true;
+    }
 
-            if (parent == null) {
-                // 'node' is the root node of this tree.
-                root = null;
-                size = 0;
-                return node;
-            }
+    //first rank of the group of element in the high int and its size in the
+    //low int, -1 if element is not found
+    private long locateGroup(T element) {
+        long score = score(element);
+        int before = 0;
+        Node<T> node = root;
 
-            decrementChildren(parent, node);
+        while (node != null) {
+            int cmp = compare(element, score, node);
 
-            if (node == parent.left) {
-                parent.left = null;
+            if (cmp == 0) {
+                if (!node.contains(element)) {
+                    return -1;
+                }
+                return (long) (before + node.count + 1) << 32 | node.size();
+            } else if (cmp < 0) {
+                node = node.left;
             } else {
-                parent.right = null;
+                before += node.count + node.size();
+                node = node.right;
             }
-
-            return node;
         }
+        return -1;
+    }
 
-        if (node.left == null || node.right == null) {
-            Node<T> child;
+    //rankOf for every element, -1 where absent
+    //elements in ascending order are answered in one coordinated descent,
+    //O(m log(n / m + 1)) for m elements, others are looked up one by one
+    public int[] rankOfAll(List<? extends T> elements) {
+        return rankOfAll(elements, null);
+    }
 
-            // 'node' has only one child.
-            if (node.left != null) {
-                child = node.left;
-            } else {
-                child = node.right;
-            }
+    //rankOfAll with large batches split across pool, by key range when the
+    //elements are sorted, the tree must not be modified meanwhile
+    public int[] rankOfAll(List<? extends T> elements, ForkJoinPool pool) {
+        //copied once, so the binary searches below are O(1) per probe even
+        //when the caller passes a LinkedList
+        @SuppressWarnings("unchecked")
+        T[] items = (T[]) elements.toArray();
+        int[] ranks = new int[items.length];
+        long[] scores = new long[ranks.length];
+        boolean sorted = true;
+
+        for (int i = 0; i < ranks.length; i++) {
+            T element = Objects.requireNonNull(items[i], "The input element is null.");
+            scores[i] = score(element);
+            sorted = sorted && (i == 0 || compare(items[i - 1], scores[i - 1], element, scores[i]) <= 0);
+        }
 
-            Node<T> parent = node.parent;
-            child.parent = parent;
+        RecursiveAction task = sorted
+                ? new RankRangeTask(items, scores, ranks, root, 0, 0, ranks.length)
+                : new RankEachTask(items, scores, ranks, 0, ranks.length);
 
-            if (parent == null) {
-                root = child;
-                return node;
-            }
+        if (pool == null || ranks.length <= BATCH_THRESHOLD) {
+            task.invoke();
+        } else {
+            pool.invoke(task);
+        }
+        return ranks;
+    }
 
-            if (node == parent.left) {
-                parent.left = child;
-            } else {
-                parent.right = child;
-            }
+    //get for every rank, ascending ranks are answered in one coordinated descent
+    //the rank cache is neither used nor updated
+    public List<Set<T>> getAll(int[] ranks) {
+        return getAll(ranks, null);
+    }
 
-            decrementChildren(parent, child);
+    //getAll with large batches split across pool, the tree must not be modified meanwhile
+    public List<Set<T>> getAll(int[] ranks, ForkJoinPool pool) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Set<T>[] groups = new Set[ranks.length];
+        boolean sorted = true;
 
-            return node;
+        for (int i = 0; i < ranks.length; i++) {
+            checkIndex(ranks[i] - 1);
+            sorted = sorted && (i == 0 || ranks[i - 1] <= ranks[i]);
         }
 
-        // 'node' has both children.
-        Set<T> tmpKey = node.getKeys();
-        Node<T> successor = minimumNode(node.right);
-        node.setKeys(successor.getKeys());
-        Node<T> child = successor.right;
-        Node<T> parent = successor.parent;
+        RecursiveAction task = sorted
+                ? new SelectRangeTask(ranks, groups, root, 0, 0, ranks.length)
+                : new SelectEachTask(ranks, groups, 0, ranks.length);
 
-        if (parent.left == successor) {
-            parent.left = child;
+        if (pool == null || ranks.length <= BATCH_THRESHOLD) {
+            task.invoke();
         } else {
-            parent.right = child;
+            pool.invoke(task);
         }
+        return Arrays.asList(groups);
+    }
 
-        if (child != null) {
-            child.parent = parent;
-        }
+    //batches up to this size are not worth splitting
+    private static final int BATCH_THRESHOLD = 8192;
 
-        decrementChildren(parent, child);
-        successor.setKeys(tmpKey);
-        return successor;
+    //first index in [lo, hi) of sorted elements not below node
+    private int lowerBound(Node<T> node, T[] elements, long[] scores, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(elements[mid], scores[mid], node) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
     }
 
-    private Node<T> minimumNode(Node<T> node) {
-        while (node.left != null) {
-            node = node.left;
+    //first index in [lo, hi) of sorted elements above node
+    private int upperBound(Node<T> node, T[] elements, long[] scores, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(elements[mid], scores[mid], node) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
         }
-
-        return node;
+        return lo;
     }
 
-    private int height(Node<T> node) {
-        return node == null ? -1 : node.height;
+    //first index in [lo, hi) of ascending ranks at or above rank
+    private static int lowerBound(int[] ranks, int rank, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ranks[mid] < rank) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    //ranks of sorted elements[lo, hi), all within the subtree of node which has
+    //before keys ordered ahead of it, subranges of at least BATCH_THRESHOLD
+    //elements are forked when running in a pool
+    private class RankRangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final T[] elements;
+        private final long[] scores;
+        private final int[] ranks;
+        private final Node<T> node;
+        private final int before;
+        private final int lo;
+        private final int hi;
+
+        RankRangeTask(T[] elements, long[] scores, int[] ranks,
+                      Node<T> node, int before, int lo, int hi) {
+            this.elements = elements;
+            this.scores = scores;
+            this.ranks = ranks;
+            this.node = node;
+            this.before = before;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            Node<T> node = this.node;
+            int before = this.before;
+            int lo = this.lo;
+            List<RankRangeTask> forked = new ArrayList<>();
+
+            while (lo < hi) {
+                if (node == null) {
+                    Arrays.fill(ranks, lo, hi, -1);
+                    break;
+                }
+
+                int less = lowerBound(node, elements, scores, lo, hi);
+                int greater = upperBound(node, elements, scores, less, hi);
+
+                for (int i = less; i < greater; i++) {
+                    ranks[i] = node.contains(elements[i]) ? before + node.count + 1 : -1;
+                }
+
+                if (less - lo >= BATCH_THRESHOLD && inForkJoinPool()) {
+                    RankRangeTask left = new RankRangeTask(elements, scores, ranks, node.left, before, lo, less);
+                    left.fork();
+                    forked.add(left);
+                } else if (less > lo) {
+                    new RankRangeTask(elements, scores, ranks, node.left, before, lo, less).compute();
+                }
+
+                before += node.count + node.size();
+                node = node.right;
+                lo = greater;
+            }
+
+            for (RecursiveAction task : forked) {
+                task.join();
+            }
+        }
+    }
+
+    //ranks of unsorted elements[lo, hi) looked up one by one, halved until
+    //at most BATCH_THRESHOLD when running in a pool
+    private class RankEachTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final T[] elements;
+        private final long[] scores;
+        private final int[] ranks;
+        private final int lo;
+        private final int hi;
+
+        RankEachTask(T[] elements, long[] scores, int[] ranks, int lo, int hi) {
+            this.elements = elements;
+            this.scores = scores;
+            this.ranks = ranks;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > BATCH_THRESHOLD && inForkJoinPool()) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new RankEachTask(elements, scores, ranks, lo, mid),
+                        new RankEachTask(elements, scores, ranks, mid, hi));
+                return;
+            }
+
+            for (int i = lo; i < hi; i++) {
+                ranks[i] = rankOf(elements[i], scores[i]);
+            }
+        }
+    }
+
+    //groups at ascending ranks[lo, hi), all within the subtree of node
+    private class SelectRangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] ranks;
+        private final Set<T>[] groups;
+        private final Node<T> node;
+        private final int before;
+        private final int lo;
+        private final int hi;
+
+        SelectRangeTask(int[] ranks, Set<T>[] groups, Node<T> node, int before, int lo, int hi) {
+            this.ranks = ranks;
+            this.groups = groups;
+            this.node = node;
+            this.before = before;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void compute() {
+            Node<T> node = this.node;
+            int before = this.before;
+            int lo = this.lo;
+            List<SelectRangeTask> forked = new ArrayList<>();
+
+            while (lo < hi) {
+                if (node == null) {
+                    Arrays.fill(groups, lo, hi, Collections.EMPTY_SET);
+                    break;
+                }
+
+                //ranks of the group, the ones after its first are ghosts
+                int rank = before + node.count + 1;
+                int less = lowerBound(ranks, rank, lo, hi);
+                int greater = lowerBound(ranks, rank + node.size(), less, hi);
+
+                for (int i = less; i < greater; i++) {
+                    groups[i] = ranks[i] == rank ? node.getKeys() : Collections.EMPTY_SET;
+                }
+
+                if (less - lo >= BATCH_THRESHOLD && inForkJoinPool()) {
+                    SelectRangeTask left = new SelectRangeTask(ranks, groups, node.left, before, lo, less);
+                    left.fork();
+                    forked.add(left);
+                } else if (less > lo) {
+                    new SelectRangeTask(ranks, groups, node.left, before, lo, less).compute();
+                }
+
+                before += node.count + node.size();
+                node = node.right;
+                lo = greater;
+            }
+
+            for (RecursiveAction task : forked) {
+                task.join();
+            }
+        }
+    }
+
+    //groups at unsorted ranks[lo, hi) looked up one by one
+    private class SelectEachTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] ranks;
+        private final Set<T>[] groups;
+        private final int lo;
+        private final int hi;
+
+        SelectEachTask(int[] ranks, Set<T>[] groups, int lo, int hi) {
+            this.ranks = ranks;
+            this.groups = groups;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > BATCH_THRESHOLD && inForkJoinPool()) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new SelectEachTask(ranks, groups, lo, mid), new SelectEachTask(ranks, groups, mid, hi));
+                return;
+            }
+
+            for (int i = lo; i < hi; i++) {
+                groups[i] = select(ranks[i] - 1);
+            }
+        }
+    }
+
+    //greatest group less than or equal to element with its rank, null if none
+    public RankedGroup<T> floor(T element) {
+        return nearest(element, true, true);
+    }
+
+    //least group greater than or equal to element with its rank, null if none
+    public RankedGroup<T> ceiling(T element) {
+        return nearest(element, false, true);
+    }
+
+    //least group strictly greater than element with its rank, null if none
+    public RankedGroup<T> higher(T element) {
+        return nearest(element, false, false);
+    }
+
+    //greatest group strictly less than element with its rank, null if none
+    public RankedGroup<T> lower(T element) {
+        return nearest(element, true, false);
+    }
+
+    private RankedGroup<T> nearest(T element, boolean below, boolean inclusive) {
+        int[] rank = new int[1];
+        Node<T> node = nearestNode(element, below, inclusive, rank);
+        return node == null ? null : new RankedGroup<>(rank[0], node.getKeys());
+    }
+
+    //closest node below (or above) element in a single descent, its rank is
+    //stored in rank[0] when rank is not null
+    Node<T> nearestNode(T element, boolean below, boolean inclusive, int[] rank) {
+        long score = score(element);
+        Node<T> best = null;
+        int bestRank = 0;
+        int before = 0;
+        Node<T> node = root;
+
+        while (node != null) {
+            int cmp = compare(element, score, node);
+
+            if (cmp == 0 && inclusive) {
+                best = node;
+                bestRank = before + node.count + 1;
+                break;
+            }
+
+            if (below ? cmp > 0 : cmp >= 0) {
+                if (below) {
+                    best = node;
+                    bestRank = before + node.count + 1;
+                }
+                before += node.count + node.size();
+                node = node.right;
+            } else {
+                if (!below) {
+                    best = node;
+                    bestRank = before + node.count + 1;
+                }
+                node = node.left;
+            }
+        }
+
+        if (best != null && best.isDead()) {
+            //a tombstone, fall back to the live group ending just before its
+            //position, or starting at it
+            int index = below ? bestRank - 2 : bestRank - 1;
+            int[] found = new int[1];
+
+            best = index >= 0 && index < size ? selectNode(index, found) : null;
+            bestRank = found[0];
+        }
+
+        if (rank != null) {
+            rank[0] = bestRank;
+        }
+        return best;
+    }
+
+    //1 based rank element would have if it were added, shared with any group it ties
+    public int prospectiveRank(T element) {
+        return countBefore(element, false) + 1;
+    }
+
+    //number of keys ordered before element, plus those tied with it when inclusive
+    int countBefore(T element, boolean inclusive) {
+        return countBefore(element, score(element), inclusive);
+    }
+
+    private int countBefore(T element, long score, boolean inclusive) {
+        int before = 0;
+        Node<T> node = root;
+
+        while (node != null) {
+            int cmp = compare(element, score, node);
+
+            if (cmp == 0) {
+                return before + node.count + (inclusive ? node.size() : 0);
+            } else if (cmp < 0) {
+                node = node.left;
+            } else {
+                before += node.count + node.size();
+                node = node.right;
+            }
+        }
+        return before;
+    }
+
+    //number of keys in each bucket delimited by ascending boundaries, in
+    //O(B log n) for B boundaries: counts[0] holds the keys below boundaries[0],
+    //counts[i] those from boundaries[i - 1] up to but excluding boundaries[i],
+    //and counts[B] those from the last boundary up
+    public int[] histogram(List<? extends T> boundaries) {
+        int[] counts = new int[boundaries.size() + 1];
+        long previousScore = 0;
+        int previous = 0;
+
+        for (int i = 0; i < boundaries.size(); i++) {
+            T boundary = Objects.requireNonNull(boundaries.get(i), "The bucket boundary is null.");
+            long score = score(boundary);
+            if (i > 0 && compare(boundaries.get(i - 1), previousScore, boundary, score) > 0) {
+                throw new IllegalArgumentException("The bucket boundaries are not in ascending order at " + i);
+            }
+
+            int below = countBefore(boundary, score, false);
+            counts[i] = below - previous;
+            previous = below;
+            previousScore = score;
+        }
+
+        counts[boundaries.size()] = size - previous;
+        return counts;
+    }
+
+    //first ranks of buckets holding about size / buckets keys each, for
+    //equal-frequency charts: bucket i covers ranks[i] up to but excluding
+    //ranks[i + 1], ranks[0] is 1 and ranks[buckets] is size + 1
+    //buckets start at tie group boundaries so a group is never split, they
+    //can be empty when a group spans more than a bucket, O(buckets log n)
+    public int[] equalFrequencyRanks(int buckets) {
+        if (buckets < 1) {
+            throw new IllegalArgumentException("The number of buckets must be positive: " + buckets);
+        }
+
+        int[] ranks = new int[buckets + 1];
+        int[] first = new int[1];
+        ranks[0] = 1;
+
+        for (int i = 1; i < buckets; i++) {
+            int index = (int) ((long) i * size / buckets);
+            if (index == 0) {
+                ranks[i] = 1;
+            } else {
+                selectNode(index, first);
+                ranks[i] = first[0];
+            }
+        }
+
+        ranks[buckets] = size + 1;
+        return ranks;
+    }
+
+    //group at rank 1, O(1)
+    public Set<T> first() {
+        Node<T> node = firstNode();
+        if (node == null) {
+            throw new NoSuchElementException("The tree is empty.");
+        }
+        return node.getKeys();
+    }
+
+    //group with the greatest rank, O(1)
+    public Set<T> last() {
+        Node<T> node = lastNode();
+        if (node == null) {
+            throw new NoSuchElementException("The tree is empty.");
+        }
+        return node.getKeys();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private void decrementSize() {
+        if (size > 0) {
+            size--;
+        }
+    }
+
+
+    //int counts would wrap silently past this size, see LargeOrderStatisticTree
+    private void checkCapacity() {
+        if (size == Integer.MAX_VALUE) {
+            throw new IllegalStateException("The tree is full at " + size
+                    + " elements, use LargeOrderStatisticTree for larger sets");
+        }
+    }
+
+    //minimum value is 0, max is size-1
+    //note that values in between may not have entries because of ties
+    //which live at one index, but "ghost" multiple other indexes
+    private void checkIndex(int index) {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException(
+                    "The input index is negative: " + index);
+        }
+
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(
+                    "The input index is too large: " + index +
+                            ", the size of this tree is " + size);
+        }
+    }
+
+    private Node<T> deleteNode(Node<T> node) {
+        if (node.left == null && node.right == null) {
+            // 'node' has no children.
+            Node<T> parent = node.parent;
+
+            if (parent == null) {
+                // 'node' is the root node of this tree.
+                root = null;
+                size = 0;
+                return node;
+            }
+
+            if (node == parent.left) {
+                parent.left = null;
+            } else {
+                parent.right = null;
+            }
+
+            return node;
+        }
+
+        if (node.left == null || node.right == null) {
+            Node<T> child;
+
+            // 'node' has only one child.
+            if (node.left != null) {
+                child = node.left;
+            } else {
+                child = node.right;
+            }
+
+            Node<T> parent = node.parent;
+            child.parent = parent;
+
+            if (parent == null) {
+                root = child;
+                return node;
+            }
+
+            if (node == parent.left) {
+                parent.left = child;
+            } else {
+                parent.right = child;
+            }
+
+            return node;
+        }
+
+        // 'node' has both children.
+        Node<T> successor = minimumNode(node.right);
+        node.swapKeys(successor);
+        Node<T> child = successor.right;
+        Node<T> parent = successor.parent;
+
+        if (parent.left == successor) {
+            parent.left = child;
+        } else {
+            parent.right = child;
+        }
+
+        if (child != null) {
+            child.parent = parent;
+        }
+
+        //keys of successor moved up into node, so nodes between them lose all of
+        //them from their left subtree, nodes above node were already counted
+        //down for the removed key by remove
+        decrementChildren(parent, child, node, node.size());
+        return successor;
+    }
+
+    private Node<T> minimumNode(Node<T> node) {
+        while (node.left != null) {
+            node = node.left;
+        }
+
+        return node;
+    }
+
+    private Node<T> maximumNode(Node<T> node) {
+        while (node.right != null) {
+            node = node.right;
+        }
+
+        return node;
+    }
+
+    private int height(Node<T> node) {
+        return node == null ? -1 : node.height;
+    }
+
+    //make node's right child the root of its subtree and return it, keeping
+    //counts and aggregates correct; the balancer maintains its own field
+    Node<T> rotateLeft(Node<T> node1) {
+        Node<T> node2 = node1.right;
+        Node<T> parent = node1.parent;
+        node2.parent = parent;
+        node1.parent = node2;
+        node1.right = node2.left;
+        node2.left = node1;
+
+        if (node1.right != null) {
+            node1.right.parent = node1;
+        }
+
+        replaceChild(parent, node1, node2);
+        node2.count += node1.count + node1.size();
+        pull(node1);
+        pull(node2);
+        return node2;
+    }
+
+    //make node's left child the root of its subtree and return it, keeping
+    //counts and aggregates correct; the balancer maintains its own field
+    Node<T> rotateRight(Node<T> node1) {
+        Node<T> node2 = node1.left;
+        Node<T> parent = node1.parent;
+        node2.parent = parent;
+        node1.parent = node2;
+        node1.left = node2.right;
+        node2.right = node1;
+
+        if (node1.left != null) {
+            node1.left.parent = node1;
+        }
+
+        replaceChild(parent, node1, node2);
+        node1.count -= node2.count + node2.size();
+        pull(node1);
+        pull(node2);
+        return node2;
+    }
+
+    private void replaceChild(Node<T> parent, Node<T> child, Node<T> replacement) {
+        if (parent == null) {
+            root = replacement;
+        } else if (parent.left == child) {
+            parent.left = replacement;
+        } else {
+            parent.right = replacement;
+        }
+    }
+
+    //full integrity check, iterative and using memory proportional to tree height only
+    public boolean isHealthy() {
+        if (root == null) {
+            return size == 0;
+        }
+
+        return root.parent == null && TreeValidator.count(root, balancer) == size;
+    }
+
+    //full integrity check with subtrees checked in parallel on the given pool
+    public boolean isHealthy(ForkJoinPool pool) {
+        if (root == null) {
+            return size == 0;
+        }
+
+        return root.parent == null && TreeValidator.count(root, pool, balancer) == size;
+    }
+
+    //when enabled every add and remove verifies height, balance and count along
+    //the modified path, throwing IllegalStateException on corruption
+    public void setIncrementalValidation(boolean enabled) {
+        validating = enabled;
+    }
+
+    public boolean isIncrementalValidation() {
+        return validating;
+    }
+
+    private void validate(Node<T> node) {
+        if (validating) {
+            TreeValidator.checkPath(node, root, size, balancer);
+        }
+    }
+
+    protected boolean containsCycles() {
+        Set<Node<T>> visitedNodes = new HashSet<>();
+        return containsCycles(root, visitedNodes);
+    }
+
+    private boolean containsCycles(Node<T> current, Set<Node<T>> visitedNodes) {
+        if (current == null) {
+            return false;
+        }
+
+        if (visitedNodes.contains(current)) {
+            return true;
+        }
+
+        visitedNodes.add(current);
+
+        return containsCycles(current.left, visitedNodes)
+                || containsCycles(current.right, visitedNodes);
+    }
+
+    //AVL heights, other schemes check their own invariant instead
+    protected boolean heightsAreCorrect() {
+        if (scheme != BalancingScheme.AVL) {
+            return isHealthy();
+        }
+        return getHeight(root) == root.height;
+    }
+
+    private int getHeight(Node<T> node) {
+        if (node == null) {
+            return -1;
+        }
+
+        int leftTreeHeight = getHeight(node.left);
+
+        if (leftTreeHeight == Integer.MIN_VALUE) {
+            return Integer.MIN_VALUE;
+        }
+
+        int rightTreeHeight = getHeight(node.right);
+
+        if (rightTreeHeight == Integer.MIN_VALUE) {
+            return Integer.MIN_VALUE;
+        }
+
+        if (node.height == Math.max(leftTreeHeight, rightTreeHeight) + 1) {
+            return node.height;
+        }
+
+        return Integer.MIN_VALUE;
+    }
+
+    protected boolean isBalanced() {
+        if (scheme != BalancingScheme.AVL) {
+            return isHealthy();
+        }
+        return isBalanced(root);
+    }
+
+    private boolean isBalanced(Node<T> node) {
+        if (node == null) {
+            return true;
+        }
+
+        if (!isBalanced(node.left)) {
+            return false;
+        }
+
+        if (!isBalanced(node.right)) {
+            return false;
+        }
+
+        int leftHeight  = height(node.left);
+        int rightHeight = height(node.right);
+
+        return Math.abs(leftHeight - rightHeight) < 2;
+    }
+
+    protected boolean isWellIndexed() {
+        return size == count(root);
+    }
+
+    private int count(Node<T> node) {
+        if (node == null) {
+            return 0;
+        }
+
+        int leftTreeSize = count(node.left);
+
+        if (node.count != leftTreeSize) {
+            throw new RuntimeException("Node count not equal to left tree size: "+node.count+" "+leftTreeSize);
+        }
+
+        int rightTreeSize = count(node.right);
+
+        return leftTreeSize + node.size() + rightTreeSize;
+    }
+
+    //aggregate of the tie groups whose rank lies in fromRank..toRank inclusive
+    //groups are never split, a group counts if its (first) rank is in range
+    //augmentation must be the one this tree was created with
+    public <A> A aggregate(Augmentation<? super T, A> augmentation, int fromRank, int toRank) {
+        checkAugmentation(augmentation);
+        checkIndex(fromRank - 1);
+        checkIndex(toRank - 1);
+
+        return cast(aggregate(root, 0, fromRank, toRank, false, false));
+    }
+
+    //aggregate of every element ordered strictly before element
+    public <A> A aggregateBelow(Augmentation<? super T, A> augmentation, T element) {
+        checkAugmentation(augmentation);
+        long score = score(element);
+        Object aggregate = this.augmentation.identity();
+        Node<T> node = root;
+
+        while (node != null) {
+            int cmp = compare(element, score, node);
+
+            if (cmp < 0) {
+                node = node.left;
+            } else if (cmp > 0) {
+                aggregate = this.augmentation.combine(aggregate,
+                        this.augmentation.combine(aggregateOf(node.left), ownAggregate(node)));
+                node = node.right;
+            } else {
+                aggregate = this.augmentation.combine(aggregate, aggregateOf(node.left));
+                break;
+            }
+        }
+
+        return cast(aggregate);
+    }
+
+    //before is the number of keys ordered before the subtree of node, fromOpen
+    //(toOpen) is set once every rank in the subtree is known to be >= from (<= to)
+    private Object aggregate(Node<T> node, int before, int from, int to, boolean fromOpen, boolean toOpen) {
+        if (node == null) {
+            return augmentation.identity();
+        }
+
+        if (fromOpen && toOpen) {
+            return node.aggregate;
+        }
+
+        int rank = before + node.count + 1;
+        int after = before + node.count + node.size();
+
+        if (rank < from) {
+            return aggregate(node.right, after, from, to, fromOpen, toOpen);
+        }
+
+        if (rank > to) {
+            return aggregate(node.left, before, from, to, fromOpen, toOpen);
+        }
+
+        Object left = aggregate(node.left, before, from, to, fromOpen, true);
+        Object right = aggregate(node.right, after, from, to, true, toOpen);
+        return augmentation.combine(augmentation.combine(left, ownAggregate(node)), right);
     }
 
-    private Node<T> leftRotate(Node<T> node1) {
-        Node<T> node2 = node1.right;
-        node2.parent = node1.parent;
-        node1.parent = node2;
-        node1.right = node2.left;
-        node2.left = node1;
+    public int getCategoryCount() {
+        return categories;
+    }
 
-        if (node1.right != null) {
-            node1.right.parent = node1;
+    //number of elements in category
+    public int size(int category) {
+        checkCategory(category);
+        return categoryCount(root, category);
+    }
+
+    //1 based rank of element among the elements of category, shared by the
+    //members of its tie group in that category, -1 if element is not in the
+    //tree or not in category, O(log n)
+    public int rankOf(T element, int category) {
+        checkCategory(category);
+        long score = score(element);
+        int before = 0;
+        Node<T> node = root;
+
+        while (node != null) {
+            int cmp = compare(element, score, node);
+
+            if (cmp == 0) {
+                if (!node.contains(element) || categorizer.applyAsInt(element) != category) {
+                    return -1;
+                }
+                return before + categoryCount(node.left, category) + 1;
+            } else if (cmp < 0) {
+                node = node.left;
+            } else {
+                before += node.categoryCounts[category] - categoryCount(node.right, category);
+                node = node.right;
+            }
+        }
+        return -1;
+    }
+
+    //members of category in the tie group at 1 based rank within category,
+    //empty for ranks ghosted by a tie, as for get(rank), O(log n) plus the
+    //size of the group
+    public Set<T> get(int rank, int category) {
+        checkCategory(category);
+        int index = rank - 1;
+        if (index < 0 || index >= categoryCount(root, category)) {
+            throw new IndexOutOfBoundsException("Rank " + rank + " is out of range [1, "
+                    + categoryCount(root, category) + "] of category " + category);
         }
 
-        node1.height = Math.max(height(node1.left), height(node1.right)) + 1;
-        node2.height = Math.max(height(node2.left), height(node2.right)) + 1;
-        node2.count += node1.count + node1.size();
-        return node2;
+        Node<T> node = root;
+
+        while (true) {
+            int left = categoryCount(node.left, category);
+            int own = node.categoryCounts[category] - left - categoryCount(node.right, category);
+
+            if (index < left) {
+                node = node.left;
+            } else if (index >= left + own) {
+                index -= left + own;
+                node = node.right;
+            } else if (index > left) {
+                return Collections.emptySet();
+            } else {
+                Set<T> members = new HashSet<>();
+                for (T key : node.keySet()) {
+                    if (categorizer.applyAsInt(key) == category) {
+                        members.add(key);
+                    }
+                }
+                return members;
+            }
+        }
     }
 
-    private Node<T> rightRotate(Node<T> node1) {
-        Node<T> node2 = node1.left;
-        node2.parent = node1.parent;
-        node1.parent = node2;
-        node1.left = node2.right;
-        node2.right = node1;
+    private static int categoryCount(Node<?> node, int category) {
+        return node == null ? 0 : node.categoryCounts[category];
+    }
 
-        if (node1.left != null) {
-            node1.left.parent = node1;
+    private void checkCategory(int category) {
+        if (categorizer == null) {
+            throw new IllegalStateException("This tree has no categories.");
+        }
+        if (category < 0 || category >= categories) {
+            throw new IllegalArgumentException("Category " + category + " is out of range [0, " + categories + ")");
         }
+    }
 
-        node1.height = Math.max(height(node1.left), height(node1.right)) + 1;
-        node2.height = Math.max(height(node2.left), height(node2.right)) + 1;
-        node1.count -= node2.count + node2.size();
-        return node2;
+    //reject an element with an invalid category before anything is changed
+    private void checkCategory(T element) {
+        if (categorizer != null) {
+            int category = categorizer.applyAsInt(element);
+            if (category < 0 || category >= categories) {
+                throw new IllegalArgumentException("Category " + category + " of " + element
+                        + " is out of range [0, " + categories + ")");
+            }
+        }
     }
 
-    private Node<T> rightLeftRotate(Node<T> node1) {
-        Node<T> node2 = node1.right;
-        node1.right = rightRotate(node2);
-        return leftRotate(node1);
+    private void checkAugmentation(Augmentation<?, ?> augmentation) {
+        if (augmentation == null || augmentation != this.augmentation) {
+            throw new IllegalArgumentException("This tree does not maintain the given augmentation.");
+        }
     }
 
-    private Node<T> leftRightRotate(Node<T> node1) {
-        Node<T> node2 = node1.left;
-        node1.left = leftRotate(node2);
-        return rightRotate(node1);
+    @SuppressWarnings("unchecked")
+    private static <A> A cast(Object aggregate) {
+        return (A) aggregate;
     }
 
-    // Fixing an insertion: use insertionMode = true.
-    // Fixing a deletion: use insertionMode = false.
-    private void fixAfterModification(Node<T> node, boolean insertionMode) {
-        Node<T> parent = node.parent;
-        Node<T> grandParent;
-        Node<T> subTree;
+    private Object aggregateOf(Node<T> node) {
+        return node == null ? augmentation.identity() : node.aggregate;
+    }
 
-        while (parent != null) {
-            if (height(parent.left) == height(parent.right) + 2) {
-                grandParent = parent.parent;
+    private Object ownAggregate(Node<T> node) {
+        return node.ownAggregate;
+    }
 
-                if (height(parent.left.left) >= height(parent.left.right)) {
-                    subTree = rightRotate(parent);
-                } else {
-                    subTree = leftRightRotate(parent);
-                }
+    //aggregate of the keys of node computed from scratch, O(size of the group)
+    private Object foldOwnAggregate(Node<T> node) {
+        if (node.size() == 1) {
+            return augmentation.lift(node.key());
+        }
 
-                if (grandParent == null) {
-                    root = subTree;
-                } else if (grandParent.left == parent) {
-                    grandParent.left = subTree;
-                } else {
-                    grandParent.right = subTree;
-                }
+        Object aggregate = augmentation.identity();
+        for (T key : node.keySet()) {
+            aggregate = augmentation.combine(aggregate, repeat(augmentation.lift(key), node.multiplicity(key)));
+        }
+        return aggregate;
+    }
 
-                if (grandParent != null) {
-                    grandParent.height = Math.max(
-                            height(grandParent.left),
-                            height(grandParent.right)) + 1;
-                }
+    //lifted combined with itself copies times, by doubling so a key with a
+    //million copies costs 20 combines
+    private Object repeat(Object lifted, int copies) {
+        Object result = augmentation.identity();
 
-                if (insertionMode) {
-                    // Whenever fixing after insertion, at most one rotation is
-                    // required in order to maintain the balance.
-                    return;
-                }
-            } else if (height(parent.right) == height(parent.left) + 2) {
-                grandParent = parent.parent;
+        while (copies > 0) {
+            if ((copies & 1) != 0) {
+                result = augmentation.combine(result, lifted);
+            }
+            copies >>>= 1;
+            if (copies > 0) {
+                lifted = augmentation.combine(lifted, lifted);
+            }
+        }
+        return result;
+    }
 
-                if (height(parent.right.right) >= height(parent.right.left)) {
-                    subTree = leftRotate(parent);
-                } else {
-                    subTree = rightLeftRotate(parent);
-                }
+    //recompute the aggregate and category counts of node from its own and its children's
+    private void pull(Node<T> node) {
+        if (augmentation != null) {
+            node.aggregate = augmentation.combine(
+                    augmentation.combine(aggregateOf(node.left), ownAggregate(node)),
+                    aggregateOf(node.right));
+        }
+        if (categorizer != null) {
+            pullCategories(node);
+        }
+    }
 
-                if (grandParent == null) {
-                    root = subTree;
-                } else if (grandParent.left == parent) {
-                    grandParent.left = subTree;
-                } else {
-                    grandParent.right = subTree;
-                }
+    private void pullCategories(Node<T> node) {
+        int[] counts = node.categoryCounts;
+        if (counts == null) {
+            counts = node.categoryCounts = new int[categories];
+        }
 
-                if (grandParent != null) {
-                    grandParent.height =
-                            Math.max(height(grandParent.left),
-                                    height(grandParent.right)) + 1;
-                }
+        int[] left = node.left == null ? null : node.left.categoryCounts;
+        int[] right = node.right == null ? null : node.right.categoryCounts;
 
-                if (insertionMode) {
-                    return;
-                }
+        if (left == null && right == null) {
+            Arrays.fill(counts, 0);
+        } else if (left == null || right == null) {
+            System.arraycopy(left == null ? right : left, 0, counts, 0, categories);
+        } else {
+            for (int c = 0; c < categories; c++) {
+                counts[c] = left[c] + right[c];
             }
+        }
 
-            parent.height = Math.max(height(parent.left),
-                    height(parent.right)) + 1;
-            parent = parent.parent;
+        int[] own = node.ownCategoryCounts;
+        if (own != null) {
+            for (int c = 0; c < categories; c++) {
+                counts[c] += own[c];
+            }
+        } else if (!node.isDead()) {
+            counts[categorizer.applyAsInt(node.key())]++;
         }
     }
 
-    public boolean isHealthy() {
-        if (root == null) {
-            return true;
+    //one copy of element left node, a node without own counts holds only its key
+    private void uncountCategory(Node<T> node, T element) {
+        if (categorizer != null && node.ownCategoryCounts != null) {
+            node.ownCategoryCounts[categorizer.applyAsInt(element)]--;
         }
+    }
 
-        return !containsCycles()
-                && heightsAreCorrect()
-                && isBalanced()
-                && isWellIndexed();
+    private void pullToRoot(Node<T> node) {
+        if (augmentation != null || categorizer != null) {
+            for (; node != null; node = node.parent) {
+                pull(node);
+            }
+        }
     }
 
-    protected boolean containsCycles() {
-        Set<Node<T>> visitedNodes = new HashSet<>();
-        return containsCycles(root, visitedNodes);
+    //cache the tie groups of ranks 1..limit, get() for those ranks is then
+    //answered from an immutable array and returns unmodifiable sets
+    //each mutation at rank r refreshes ranks r..limit before it returns,
+    //O(log n + limit - r), so reads never write and concurrent readers are safe
+    //limit 0 disables the cache
+    public void setRankCacheLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("The rank cache limit is negative: " + limit);
+        }
+        rankCache = limit == 0 ? null : new RankCache<>(limit);
+        refreshRankCache();
     }
 
-    private boolean containsCycles(Node<T> current, Set<Node<T>> visitedNodes) {
-        if (current == null) {
-            return false;
+    public int getRankCacheLimit() {
+        return rankCache == null ? 0 : rankCache.limit;
+    }
+
+    //total number of ranks recomputed by the mutations since the cache was enabled
+    public long getRankCacheRebuiltRanks() {
+        return rankCache == null ? 0 : rankCache.rebuiltRanks;
+    }
+
+    //tie groups for ranks fromRank..toRank inclusive, 1 based
+    //served without copying when the range lies within the rank cache
+    public List<Set<T>> getRange(int fromRank, int toRank) {
+        checkIndex(fromRank - 1);
+        checkIndex(toRank - 1);
+        if (fromRank > toRank) {
+            throw new IllegalArgumentException("fromRank " + fromRank + " is after toRank " + toRank);
         }
 
-        if (visitedNodes.contains(current)) {
-            return true;
+        if (rankCache != null) {
+            RankCache.Snapshot<T> snapshot = rankCache.snapshot();
+            if (toRank <= snapshot.validThrough) {
+                return Collections.unmodifiableList(Arrays.asList(snapshot.ranks).subList(fromRank - 1, toRank));
+            }
         }
 
-        visitedNodes.add(current);
+        List<Set<T>> range = new ArrayList<>(toRank - fromRank + 1);
+        for (int rank = fromRank; rank <= toRank; rank++) {
+            range.add(get(rank));
+        }
+        return range;
+    }
 
-        return containsCycles(current.left, visitedNodes)
-                || containsCycles(current.right, visitedNodes);
+    private void invalidateRanks(int rank) {
+        if (rankCache != null) {
+            rankCache.invalidateFrom(rank);
+        }
     }
 
-    protected boolean heightsAreCorrect() {
-        return getHeight(root) == root.height;
+    private void invalidateRanks(Node<T> node) {
+        if (rankCache != null) {
+            rankCache.invalidateFrom(rankOf(node));
+        }
     }
 
-    private int getHeight(Node<T> node) {
-        if (node == null) {
-            return -1;
+    //1 based rank of the keys of node, found walking up to root
+    private int rankOf(Node<T> node) {
+        int rank = node.count + 1;
+
+        for (Node<T> parent = node.parent; parent != null; node = parent, parent = parent.parent) {
+            if (parent.right == node) {
+                rank += parent.count + parent.size();
+            }
+        }
+        return rank;
+    }
+
+    //bring the cached ranks up to date after a mutation, keeping the ranks
+    //below the watermark and walking in order from the first stale one
+    private void refreshRankCache() {
+        if (rankCache == null) {
+            return;
         }
 
-        int leftTreeHeight = getHeight(node.left);
+        int limit = Math.min(rankCache.limit, size);
+        RankCache.Snapshot<T> current = rankCache.snapshot();
+        int valid = Math.min(current.validThrough, limit);
 
-        if (leftTreeHeight == Integer.MIN_VALUE) {
-            return Integer.MIN_VALUE;
+        if (valid == limit) {
+            return;
         }
 
-        int rightTreeHeight = getHeight(node.right);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Set<T>[] ranks = new Set[limit];
+        System.arraycopy(current.ranks, 0, ranks, 0, valid);
 
-        if (rightTreeHeight == Integer.MIN_VALUE) {
-            return Integer.MIN_VALUE;
+        int[] first = new int[1];
+        Node<T> node = selectNode(valid, first);
+        int rank = valid;
+        //ranks of the group of node before valid are already copied or ghosts
+        int skip = valid - (first[0] - 1);
+
+        while (node != null && rank < limit) {
+            if (skip == 0) {
+                ranks[rank++] = Collections.unmodifiableSet(node.getKeys());
+                skip = 1;
+            }
+
+            for (int i = skip; i < node.size() && rank < limit; i++) {
+                ranks[rank++] = Collections.emptySet();
+            }
+            skip = 0;
+            node = successor(node);
         }
 
-        if (node.height == Math.max(leftTreeHeight, rightTreeHeight) + 1) {
-            return node.height;
+        rankCache.rebuiltRanks += limit - valid;
+        rankCache.publish(ranks, limit);
+    }
+
+    //next node holding keys, tombstones are skipped
+    Node<T> successor(Node<T> node) {
+        do {
+            node = nextNode(node);
+        } while (node != null && node.isDead());
+        return node;
+    }
+
+    //previous node holding keys, tombstones are skipped
+    Node<T> predecessor(Node<T> node) {
+        do {
+            node = previousNode(node);
+        } while (node != null && node.isDead());
+        return node;
+    }
+
+    private Node<T> nextNode(Node<T> node) {
+        if (node.right != null) {
+            return minimumNode(node.right);
         }
 
-        return Integer.MIN_VALUE;
+        Node<T> parent = node.parent;
+        while (parent != null && parent.right == node) {
+            node = parent;
+            parent = parent.parent;
+        }
+        return parent;
     }
 
-    protected boolean isBalanced() {
-        return isBalanced(root);
+    private Node<T> previousNode(Node<T> node) {
+        if (node.left != null) {
+            return maximumNode(node.left);
+        }
+
+        Node<T> parent = node.parent;
+        while (parent != null && parent.left == node) {
+            node = parent;
+            parent = parent.parent;
+        }
+        return parent;
     }
 
-    private boolean isBalanced(Node<T> node) {
-        if (node == null) {
-            return true;
+    Node<T> firstNode() {
+        return min == null || !min.isDead() ? min : successor(min);
+    }
+
+    Node<T> lastNode() {
+        return max == null || !max.isDead() ? max : predecessor(max);
+    }
+
+    int modCount() {
+        return modCount;
+    }
+
+    //NavigableSet view backed by this tree, see OrderStatisticNavigableSet
+    //throws IllegalStateException for a multiset tree
+    public NavigableSet<T> asNavigableSet() {
+        return new OrderStatisticNavigableSet<>(this);
+    }
+
+    //write every element in order with its rank to channel, through a 64KB
+    //heap buffer, returns the number of elements written
+    public int exportTo(WritableByteChannel channel, RecordEncoder<? super T> encoder) throws IOException {
+        return exportTo(channel, encoder, 1, size);
+    }
+
+    //export the elements at positions fromRank..toRank, see exportTo(channel, encoder, from, to, buffer)
+    //a direct buffer is costly to allocate and free, pass one in to export through it
+    public int exportTo(WritableByteChannel channel, RecordEncoder<? super T> encoder,
+                        int fromRank, int toRank) throws IOException {
+        return exportTo(channel, encoder, fromRank, toRank, ByteBuffer.allocate(EXPORT_BUFFER_SIZE));
+    }
+
+    //export the elements at positions fromRank..toRank, inclusive, through buffer
+    //which can be reused across calls, e.g. one per static results page
+    //positions break ties in a fixed arbitrary order, so consecutive ranges
+    //split a tie group without losing or repeating elements, each element is
+    //encoded with the rank of its group, memory use is O(1) besides buffer
+    public int exportTo(WritableByteChannel channel, RecordEncoder<? super T> encoder,
+                        int fromRank, int toRank, ByteBuffer buffer) throws IOException {
+        Objects.requireNonNull(channel, "The channel is null.");
+        Objects.requireNonNull(encoder, "The encoder is null.");
+        if (fromRank < 1 || toRank > size || fromRank > toRank + 1) {
+            throw new IndexOutOfBoundsException("Invalid export range [" + fromRank + ", " + toRank
+                    + "], the size of this tree is " + size);
         }
 
-        if (!isBalanced(node.left)) {
-            return false;
+        int expectedModCount = modCount;
+        buffer.clear();
+        encode(channel, buffer, encoder::begin);
+
+        //find the group holding position fromRank and the offset into it
+        int index = fromRank - 1;
+        int before = 0;
+        Node<T> node = root;
+
+        while (node != null && toRank >= fromRank) {
+            if (index < before + node.count) {
+                node = node.left;
+            } else if (index >= before + node.count + node.size()) {
+                before += node.count + node.size();
+                node = node.right;
+            } else {
+                break;
+            }
         }
 
-        if (!isBalanced(node.right)) {
-            return false;
+        int position = fromRank;
+        int skip = node == null ? 0 : index - before - node.count;
+        int rank = before + (node == null ? 0 : node.count) + 1;
+
+        for (; node != null && position <= toRank; node = successor(node)) {
+            for (T element : node.keySet()) {
+                for (int copies = node.multiplicity(element); copies > 0; copies--) {
+                    if (skip > 0) {
+                        skip--;
+                        continue;
+                    }
+                    if (position > toRank) {
+                        break;
+                    }
+
+                    encode(channel, buffer, encoder, element, rank);
+                    position++;
+                }
+            }
+
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            rank += node.size();
         }
 
-        int leftHeight  = height(node.left);
-        int rightHeight = height(node.right);
+        encode(channel, buffer, encoder::end);
+        drain(channel, buffer);
+        return position - fromRank;
+    }
 
-        return Math.abs(leftHeight - rightHeight) < 2;
+    private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+
+    //encode element into buffer, draining the buffer and retrying once if it overflows
+    private static <T> void encode(WritableByteChannel channel, ByteBuffer buffer,
+                                   RecordEncoder<? super T> encoder, T element, int rank) throws IOException {
+        int start = buffer.position();
+        try {
+            encoder.encode(element, rank, buffer);
+        } catch (BufferOverflowException e) {
+            buffer.position(start);
+            drain(channel, buffer);
+            try {
+                encoder.encode(element, rank, buffer);
+            } catch (BufferOverflowException tooLarge) {
+                throw new IllegalStateException("A record does not fit in a buffer of "
+                        + buffer.capacity() + " bytes.", tooLarge);
+            }
+        }
     }
 
-    protected boolean isWellIndexed() {
-        return size == count(root);
+    //same as encode for the header and footer
+    private static void encode(WritableByteChannel channel, ByteBuffer buffer,
+                               Consumer<ByteBuffer> record) throws IOException {
+        RecordEncoder<Object> encoder = (element, rank, target) -> record.accept(target);
+        encode(channel, buffer, encoder, null, 0);
     }
 
-    private int count(Node<T> node) {
-        if (node == null) {
-            return 0;
+    private static void drain(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
         }
+        buffer.clear();
+    }
 
-        int leftTreeSize = count(node.left);
+    //independent tree with the same elements, ordering and settings, built by
+    //duplicating the node structure in O(n) without comparisons or rebalancing
+    //single key nodes have no tie set to copy, elements themselves are shared
+    public OrderStatisticTree<T> copy() {
+        OrderStatisticTree<T> copy = new OrderStatisticTree<>(comparator, scoreFunction, augmentation, scheme,
+                categorizer, categories);
+        copy.validating = validating;
+        copy.lazyDeletion = lazyDeletion;
+        copy.multiset = multiset;
+        copy.compactionThreshold = compactionThreshold;
+        copy.tombstones = tombstones;
+        copy.setNodePoolCapacity(nodePoolCapacity);
+        if (rankCache != null) {
+            copy.setRankCacheLimit(rankCache.limit);
+        }
 
-        if (node.count != leftTreeSize) {
-            throw new RuntimeException("Node count not equal to left tree size: "+node.count+" "+leftTreeSize);
+        if (root == null) {
+            return copy;
         }
 
-        int rightTreeSize = count(node.right);
+        //walk both trees in step, following parent links back up so that no
+        //stack is needed, every node is entered from above once
+        Node<T> from = root;
+        Node<T> to = new Node<>(root);
+        copy.root = to;
 
-        return leftTreeSize + node.size() + rightTreeSize;
+        while (true) {
+            if (from == min) {
+                copy.min = to;
+            }
+            if (from == max) {
+                copy.max = to;
+            }
+            if (from == finger) {
+                copy.finger = to;
+            }
+
+            if (from.left != null) {
+                to.left = new Node<>(from.left);
+                to.left.parent = to;
+                from = from.left;
+                to = to.left;
+                continue;
+            }
+
+            //climb until an ancestor has a right subtree not yet copied
+            while (from.right == null || to.right != null) {
+                if (from == root) {
+                    copy.size = size;
+                    copy.refreshRankCache();
+                    return copy;
+                }
+                from = from.parent;
+                to = to.parent;
+            }
+
+            to.right = new Node<>(from.right);
+            to.right.parent = to;
+            from = from.right;
+            to = to.right;
+        }
+    }
+
+    //when enabled remove() of a node's only key leaves the node in place as a
+    //tombstone instead of unlinking and rebalancing, so a burst of removals
+    //costs one descent each; tombstones occupy no ranks, are skipped by every
+    //query and are revived by adding an equal element, compact() rebuilds the
+    //tree without them, see setCompactionThreshold to run it automatically
+    //disabling compacts right away
+    public void setLazyDeletion(boolean enabled) {
+        lazyDeletion = enabled;
+        if (!enabled) {
+            compact();
+        }
+    }
+
+    public boolean isLazyDeletion() {
+        return lazyDeletion;
+    }
+
+    //fraction of tombstones among keys and tombstones above which lazy
+    //deletion compacts, the removal crossing it pays the O(n) rebuild
+    //1, the default, leaves compaction to explicit compact() calls
+    public void setCompactionThreshold(double threshold) {
+        if (!(threshold > 0 && threshold <= 1)) {
+            throw new IllegalArgumentException("The compaction threshold must be in (0, 1]: " + threshold);
+        }
+        compactionThreshold = threshold;
+    }
+
+    public double getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    public int getTombstoneCount() {
+        return tombstones;
+    }
+
+    //when enabled the tree is a multiset: adding an element that is already
+    //present counts one more copy of it instead of returning false, and
+    //remove() takes away one copy at a time; every copy occupies a rank of
+    //its tie group and is counted by size(), but a million copies of one
+    //element are a single entry, get() returns each element once
+    //a multiset has no asNavigableSet() view
+    //only an empty tree can change mode
+    public void setMultiset(boolean enabled) {
+        if (size != 0) {
+            throw new IllegalStateException("Multiset mode can only be changed while the tree is empty.");
+        }
+        multiset = enabled;
+    }
+
+    public boolean isMultiset() {
+        return multiset;
+    }
+
+    //number of copies of element in the tree, at most 1 unless it is a multiset
+    public int multiplicity(T element) {
+        long score = score(element);
+        Node<T> node = root;
+
+        while (node != null) {
+            int cmp = compare(element, score, node);
+
+            if (cmp == 0) {
+                return node.contains(element) ? node.multiplicity(element) : 0;
+            }
+            node = cmp < 0 ? node.left : node.right;
+        }
+        return 0;
+    }
+
+    //drop every tombstone by relinking the live nodes into a perfectly balanced
+    //tree in O(n) without comparisons, ranks and elements are unchanged
+    //call it between bursts to keep compaction off the removal path
+    public void compact() {
+        if (tombstones == 0) {
+            return;
+        }
+
+        //tie groups and copies share a node, count the nodes to size the
+        //array exactly, live nodes fill it from the front, tombstones from the back
+        int nodeCount = 0;
+        for (Node<T> node = minimumNode(root); node != null; node = nextNode(node)) {
+            nodeCount++;
+        }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Node<T>[] nodes = new Node[nodeCount];
+        //keys ordered before each live node
+        int[] before = new int[nodeCount - tombstones + 1];
+        int live = 0;
+        int dead = nodes.length;
+        for (Node<T> node = minimumNode(root); node != null; node = nextNode(node)) {
+            if (node.isDead()) {
+                nodes[--dead] = node;
+            } else {
+                before[live + 1] = before[live] + node.size();
+                nodes[live++] = node;
+            }
+        }
+
+        int height = live == 0 ? 0 : 31 - Integer.numberOfLeadingZeros(live);
+        root = build(nodes, before, 0, live, null, 0, height);
+        min = live == 0 ? null : nodes[0];
+        max = live == 0 ? null : nodes[live - 1];
+        finger = null;
+        tombstones = 0;
+        modCount++;
+        for (int i = dead; i < nodes.length; i++) {
+            recycle(nodes[i]);
+        }
+        validate(min != null ? min : root);
+    }
+
+    //link nodes[lo, hi) below parent as a tree with every level but the last full,
+    //subtrees of m nodes are then floor(log2 m) high
+    private Node<T> build(Node<T>[] nodes, int[] before, int lo, int hi, Node<T> parent,
+                          int depth, int treeHeight) {
+        if (lo >= hi) {
+            return null;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        Node<T> node = nodes[mid];
+        node.parent = parent;
+        node.left = build(nodes, before, lo, mid, node, depth + 1, treeHeight);
+        node.right = build(nodes, before, mid + 1, hi, node, depth + 1, treeHeight);
+        node.count = before[mid] - before[lo];
+        node.height = 31 - Integer.numberOfLeadingZeros(hi - lo);
+        balancer.rebuilt(node, depth, treeHeight);
+        pull(node);
+        return node;
     }
 
     public boolean isEmpty() {
         return size == 0;
     }
     public void clear() {
+        modCount++;
         root = null;
         size = 0;
+        min = null;
+        max = null;
+        finger = null;
+        tombstones = 0;
+        //release the pooled memory, pooling resumes with the next removal
+        freeNodes = null;
+        freeNodeCount = 0;
+        if (freeTieSets != null) {
+            freeTieSets = new ArrayDeque<>();
+        }
+        invalidateRanks(1);
+        refreshRankCache();
     }
     public boolean contains(T element){
         return indexOf(element) > -1;
@@ -0,0 +1,66 @@
+package com.mtecresults.ranking;
+
+import java.util.Set;
+
+/**
+ * Cache of the tie groups at the top ranks of an {@link OrderStatisticTree}.
+ *
+ * Ranks 1..validThrough are known to be current. A mutation at rank r only
+ * shifts ranks from r onwards, so it lowers the watermark to r - 1 and leaves
+ * the ranks above it cached; the tree then refreshes the ranks from r on
+ * before the mutation returns.
+ *
+ * Readers only ever read: the array of groups and its watermark are published
+ * together as one immutable {@link Snapshot} through a volatile field, so
+ * concurrent readers always see a matching pair.
+ */
+final class RankCache<T> {
+
+    //the groups of ranks 1..validThrough, never modified once published
+    static final class Snapshot<T> {
+        //ranks[rank - 1] is an unmodifiable tie group, empty for ranks skipped by a tie
+        final Set<T>[] ranks;
+        final int validThrough;
+
+        Snapshot(Set<T>[] ranks, int validThrough) {
+            this.ranks = ranks;
+            this.validThrough = validThrough;
+        }
+    }
+
+    final int limit;
+
+    private volatile Snapshot<T> snapshot;
+
+    //number of ranks recomputed by refreshes, written by the writer only
+    long rebuiltRanks = 0;
+
+    RankCache(int limit) {
+        this.limit = limit;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Set<T>[] empty = new Set[0];
+        this.snapshot = new Snapshot<>(empty, 0);
+    }
+
+    //cached group for rank or null if it has to be recomputed
+    Set<T> get(int rank) {
+        Snapshot<T> current = snapshot;
+        return rank <= current.validThrough ? current.ranks[rank - 1] : null;
+    }
+
+    Snapshot<T> snapshot() {
+        return snapshot;
+    }
+
+    //a key at rank was added or removed, every rank from there on may have changed
+    void invalidateFrom(int rank) {
+        Snapshot<T> current = snapshot;
+        if (rank <= current.validThrough) {
+            snapshot = new Snapshot<>(current.ranks, rank - 1);
+        }
+    }
+
+    void publish(Set<T>[] ranks, int validThrough) {
+        snapshot = new Snapshot<>(ranks, validThrough);
+    }
+}
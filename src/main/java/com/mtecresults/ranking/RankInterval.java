@@ -0,0 +1,46 @@
+package com.mtecresults.ranking;
+
+/**
+ * Ranks covered by a tie group of an {@link OrderStatisticTree}: the group
+ * holds firstRank and ghosts the ranks after it up to lastRank.
+ */
+public final class RankInterval {
+
+    private final int firstRank;
+    private final int lastRank;
+
+    RankInterval(int firstRank, int lastRank) {
+        this.firstRank = firstRank;
+        this.lastRank = lastRank;
+    }
+
+    //rank shared by every element of the group
+    public int getFirstRank() {
+        return firstRank;
+    }
+
+    //rank of the last element of the group if ties were broken
+    public int getLastRank() {
+        return lastRank;
+    }
+
+    public int getTieCount() {
+        return lastRank - firstRank + 1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RankInterval && ((RankInterval) o).firstRank == firstRank
+                && ((RankInterval) o).lastRank == lastRank;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * firstRank + lastRank;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + firstRank + ", " + lastRank + "]";
+    }
+}
@@ -0,0 +1,34 @@
+package com.mtecresults.ranking;
+
+import java.util.Set;
+
+/**
+ * A tie group of an {@link OrderStatisticTree} together with its 1 based rank.
+ *
+ * @param <T> the actual element type.
+ */
+public final class RankedGroup<T> {
+
+    private final int rank;
+    private final Set<T> elements;
+
+    RankedGroup(int rank, Set<T> elements) {
+        this.rank = rank;
+        this.elements = elements;
+    }
+
+    //rank shared by every element of the group
+    public int getRank() {
+        return rank;
+    }
+
+    //copy of the elements of the group, all comparing equal
+    public Set<T> getElements() {
+        return elements;
+    }
+
+    @Override
+    public String toString() {
+        return rank + "=" + elements;
+    }
+}
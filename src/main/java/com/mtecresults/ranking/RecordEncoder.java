@@ -0,0 +1,46 @@
+package com.mtecresults.ranking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes one exported element and its rank straight into a buffer, see
+ * {@link OrderStatisticTree#exportTo}.
+ *
+ * Encoders simply put their bytes: when a record does not fit, the exporter
+ * catches the BufferOverflowException, rewinds the partial record, drains the
+ * buffer to the channel and calls the encoder again. A record must therefore
+ * fit in an empty buffer and encode must not keep state between a failed call
+ * and its retry.
+ *
+ * @param <T> the element type.
+ */
+public interface RecordEncoder<T> {
+
+    void encode(T element, int rank, ByteBuffer buffer);
+
+    //written once before the first record, e.g. a CSV header or '['
+    default void begin(ByteBuffer buffer) {
+    }
+
+    //written once after the last record
+    default void end(ByteBuffer buffer) {
+    }
+
+    //ASCII decimal digits of value, for text formats that must not build strings
+    static void putDecimal(ByteBuffer buffer, long value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+        } else {
+            value = -value;
+        }
+
+        //work with the negative value so Long.MIN_VALUE needs no special case
+        long divisor = 1;
+        while (value / divisor <= -10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' - value / divisor % 10));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.mtecresults.ranking;
+
+/**
+ * Red-black rebalancing as in Cormen et al.: node.height is the color, a red
+ * node has no red child and every path down to a missing child passes the
+ * same number of black nodes.
+ */
+final class RedBlackBalancer extends Balancer {
+
+    private static final int BLACK = 0;
+    private static final int RED = 1;
+
+    private static boolean isRed(Node<?> node) {
+        return node != null && node.height == RED;
+    }
+
+    @Override
+    <T> void init(Node<T> node) {
+        node.height = RED;
+    }
+
+    @Override
+    <T> void afterInsert(OrderStatisticTree<T> tree, Node<T> node) {
+        while (isRed(node.parent)) {
+            Node<T> parent = node.parent;
+            //a red parent is never the root
+            Node<T> grandParent = parent.parent;
+            boolean left = grandParent.left == parent;
+            Node<T> uncle = left ? grandParent.right : grandParent.left;
+
+            if (isRed(uncle)) {
+                parent.height = BLACK;
+                uncle.height = BLACK;
+                grandParent.height = RED;
+                node = grandParent;
+                continue;
+            }
+
+            if (node == (left ? parent.right : parent.left)) {
+                node = parent;
+                rotate(tree, node, left);
+                parent = node.parent;
+            }
+
+            parent.height = BLACK;
+            grandParent.height = RED;
+            rotate(tree, grandParent, !left);
+        }
+
+        if (node.parent == null) {
+            node.height = BLACK;
+        }
+    }
+
+    @Override
+    <T> void afterDelete(OrderStatisticTree<T> tree, Node<T> removed) {
+        if (removed.height == RED) {
+            return;
+        }
+
+        Node<T> node = removed.left != null ? removed.left : removed.right;
+        Node<T> parent = removed.parent;
+
+        //node carries an extra black, push it up or resolve it by rotation;
+        //node may be null, its sibling never is while the tree is valid
+        while (parent != null && !isRed(node)) {
+            boolean left = parent.left == node;
+            Node<T> sibling = left ? parent.right : parent.left;
+
+            if (isRed(sibling)) {
+                sibling.height = BLACK;
+                parent.height = RED;
+                rotate(tree, parent, left);
+                sibling = left ? parent.right : parent.left;
+            }
+
+            if (!isRed(sibling.left) && !isRed(sibling.right)) {
+                sibling.height = RED;
+                node = parent;
+                parent = parent.parent;
+                continue;
+            }
+
+            if (!isRed(left ? sibling.right : sibling.left)) {
+                (left ? sibling.left : sibling.right).height = BLACK;
+                sibling.height = RED;
+                rotate(tree, sibling, !left);
+                sibling = left ? parent.right : parent.left;
+            }
+
+            sibling.height = parent.height;
+            parent.height = BLACK;
+            (left ? sibling.right : sibling.left).height = BLACK;
+            rotate(tree, parent, left);
+            return;
+        }
+
+        if (node != null) {
+            node.height = BLACK;
+        }
+    }
+
+    private static <T> void rotate(OrderStatisticTree<T> tree, Node<T> node, boolean left) {
+        if (left) {
+            tree.rotateLeft(node);
+        } else {
+            tree.rotateRight(node);
+        }
+    }
+
+    //only the partly filled last level is red, every path then has treeHeight blacks
+    @Override
+    <T> void rebuilt(Node<T> node, int depth, int treeHeight) {
+        node.height = depth == treeHeight && depth > 0 ? RED : BLACK;
+    }
+
+    @Override
+    <T> boolean isLocallyValid(Node<T> node) {
+        return (node.height == BLACK || node.height == RED)
+                && !(node.height == RED && (isRed(node.left) || isRed(node.right)));
+    }
+
+    @Override
+    <T> int pathWeight(Node<T> node) {
+        return node.height == BLACK ? 1 : 0;
+    }
+}
@@ -0,0 +1,49 @@
+package com.mtecresults.ranking;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Treap rebalancing: node.height is a random priority and no child has a
+ * higher priority than its parent.
+ *
+ * Removing a node with at most one child moves that child under a parent of
+ * at least the removed node's priority, so removals need no rebalancing.
+ */
+final class TreapBalancer extends Balancer {
+
+    @Override
+    <T> void init(Node<T> node) {
+        node.height = ThreadLocalRandom.current().nextInt();
+    }
+
+    @Override
+    <T> void afterInsert(OrderStatisticTree<T> tree, Node<T> node) {
+        while (node.parent != null && node.height > node.parent.height) {
+            if (node.parent.left == node) {
+                tree.rotateRight(node.parent);
+            } else {
+                tree.rotateLeft(node.parent);
+            }
+        }
+    }
+
+    @Override
+    <T> void afterDelete(OrderStatisticTree<T> tree, Node<T> removed) {
+    }
+
+    //random priorities from a band per level, higher levels get higher bands,
+    //spread over the whole int range like those of added nodes
+    @Override
+    <T> void rebuilt(Node<T> node, int depth, int treeHeight) {
+        long band = (1L << 32) / (treeHeight + 1);
+        long priority = Integer.MIN_VALUE + (treeHeight - depth) * band
+                + ThreadLocalRandom.current().nextLong(band);
+        node.height = (int) priority;
+    }
+
+    @Override
+    <T> boolean isLocallyValid(Node<T> node) {
+        return (node.left == null || node.left.height <= node.height)
+                && (node.right == null || node.right.height <= node.height);
+    }
+}
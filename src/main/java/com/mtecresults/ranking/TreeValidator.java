@@ -0,0 +1,254 @@
+package com.mtecresults.ranking;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Structural integrity checks for {@link OrderStatisticTree}.
+ *
+ * The full check walks the tree iteratively using parent links and needs only
+ * a few {@code int}s per level of depth, so it can run against large live
+ * trees. Subtrees can be checked in parallel on a {@link ForkJoinPool}.
+ *
+ * The incremental check verifies only the path from a modified node up to the
+ * root in one upward pass: each ancestor is checked locally against its
+ * children, the modified node and the root total along one right spine each,
+ * O(log n) without comparisons or allocation.
+ *
+ * Counts and links are checked the same way for every {@link BalancingScheme};
+ * the scheme's own invariant is checked through its {@link Balancer}.
+ */
+final class TreeValidator {
+
+    //no balanced tree of 2^31 nodes is this deep, a treap only with negligible
+    //probability, anything deeper is treated as corrupt
+    static final int MAX_DEPTH = 256;
+
+    //subtrees this far below the root are checked sequentially by a single fork-join task
+    private static final int FORK_DEPTH = 10;
+
+    private TreeValidator() {
+    }
+
+    //verify balance, count and parent links on every node from node up to root
+    //throws IllegalStateException describing the first broken invariant
+    static <T> void checkPath(Node<T> node, Node<T> root, int size, Balancer balancer) {
+        if (root == null) {
+            if (size != 0) {
+                throw new IllegalStateException("Empty tree with size " + size);
+            }
+            return;
+        }
+
+        //the modified node and the root total are checked exactly along one
+        //right spine each, every other node on the path only locally, so the
+        //whole check stays O(log n)
+        checkNode(node, spineSize(node.left), balancer);
+
+        for (int steps = 0; node.parent != null; steps++) {
+            //the walk terminates even if the parent links contain a cycle
+            if (steps > MAX_DEPTH) {
+                throw new IllegalStateException("Parent links contain a cycle");
+            }
+
+            Node<T> parent = node.parent;
+
+            if (parent.left != node && parent.right != node) {
+                throw new IllegalStateException("Parent link does not match child link");
+            }
+            checkLocal(parent, balancer);
+            node = parent;
+        }
+
+        int total = node.count + node.size() + spineSize(node.right);
+        if (node != root || total != size) {
+            throw new IllegalStateException("Root holds " + total + " keys, tree size is " + size);
+        }
+    }
+
+    private static <T> void checkNode(Node<T> node, int leftSize, Balancer balancer) {
+        if (!isLocallyValid(node, balancer)) {
+            throw new IllegalStateException("Balance or parent links broken at node with balance field "
+                    + node.height);
+        }
+
+        if (node.count != leftSize) {
+            throw new IllegalStateException("Node count not equal to left tree size: " + node.count + " "
+                    + leftSize);
+        }
+    }
+
+    //balance and links of node, and its count against its left child: exact
+    //when the left child has no right subtree, a lower bound otherwise
+    private static <T> void checkLocal(Node<T> node, Balancer balancer) {
+        if (!isLocallyValid(node, balancer)) {
+            throw new IllegalStateException("Balance or parent links broken at node with balance field "
+                    + node.height);
+        }
+
+        Node<T> left = node.left;
+        int known = left == null ? 0 : left.count + left.size();
+        boolean exact = left == null || left.right == null;
+
+        if (exact ? node.count != known : node.count < known) {
+            throw new IllegalStateException("Node count does not fit its left child: " + node.count + " "
+                    + known);
+        }
+    }
+
+    //number of keys in the subtree rooted at node, trusting the counts of its right spine
+    private static <T> int spineSize(Node<T> node) {
+        int total = 0;
+
+        for (int steps = 0; node != null; steps++) {
+            if (steps > MAX_DEPTH) {
+                throw new IllegalStateException("Right links contain a cycle");
+            }
+
+            total += node.count + node.size();
+            node = node.right;
+        }
+
+        return total;
+    }
+
+    //number of keys in the subtree rooted at top, or -1 if any invariant is broken
+    static <T> int count(Node<T> top, Balancer balancer) {
+        return count(top, balancer, MAX_DEPTH);
+    }
+
+    private static <T> int count(Node<T> top, Balancer balancer, int maxDepth) {
+        //keys seen before entering the node at each depth, so that on the
+        //in-order visit the difference is the size of its left subtree, and
+        //the path weight from top down to the node
+        int[] entry = new int[16];
+        int[] weight = new int[16];
+        Node<T> node = top;
+        Node<T> from = null;
+        boolean descending = true;
+        int depth = 0;
+        int total = 0;
+        //path weight every missing child must be reached with, -1 until the first
+        int leafWeight = -1;
+
+        while (true) {
+            if (descending) {
+                //depth is bounded, so the walk terminates even on a corrupt tree
+                if (depth >= maxDepth || !isLocallyValid(node, balancer)) {
+                    return -1;
+                }
+
+                if (depth == entry.length) {
+                    entry = Arrays.copyOf(entry, depth * 2);
+                    weight = Arrays.copyOf(weight, depth * 2);
+                }
+
+                entry[depth] = total;
+                weight[depth] = (depth == 0 ? 0 : weight[depth - 1]) + balancer.pathWeight(node);
+
+                if (node.left == null || node.right == null) {
+                    if (leafWeight < 0) {
+                        leafWeight = weight[depth];
+                    } else if (leafWeight != weight[depth]) {
+                        return -1;
+                    }
+                }
+
+                if (node.left != null) {
+                    node = node.left;
+                    depth++;
+                    continue;
+                }
+            }
+
+            if (descending || from == node.left) {
+                if (total - entry[depth] != node.count) {
+                    return -1;
+                }
+
+                total += node.size();
+
+                if (node.right != null) {
+                    node = node.right;
+                    depth++;
+                    descending = true;
+                    continue;
+                }
+            }
+
+            if (node == top) {
+                return total;
+            }
+
+            from = node;
+            node = node.parent;
+            depth--;
+            descending = false;
+        }
+    }
+
+    static <T> int count(Node<T> top, ForkJoinPool pool, Balancer balancer) {
+        return pool.invoke(new CountTask<>(top, 0, balancer));
+    }
+
+    private static <T> boolean isLocallyValid(Node<T> node, Balancer balancer) {
+        return (node.left == null || node.left.parent == node)
+                && (node.right == null || node.right.parent == node)
+                && (node.size() > 0 || node.isDead())
+                && balancer.isLocallyValid(node);
+    }
+
+    //path weight from node down to any missing child, valid once the subtree is checked
+    private static <T> int pathWeight(Node<T> node, Balancer balancer) {
+        int total = 0;
+
+        for (; node != null; node = node.left) {
+            total += balancer.pathWeight(node);
+        }
+
+        return total;
+    }
+
+    private static final class CountTask<T> extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node<T> node;
+        private final int depth;
+        private final Balancer balancer;
+
+        CountTask(Node<T> node, int depth, Balancer balancer) {
+            this.node = node;
+            this.depth = depth;
+            this.balancer = balancer;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (node == null) {
+                return 0;
+            }
+
+            if (depth >= FORK_DEPTH) {
+                return count(node, balancer, MAX_DEPTH - depth);
+            }
+
+            if (!isLocallyValid(node, balancer)) {
+                return -1;
+            }
+
+            CountTask<T> left = new CountTask<>(node.left, depth + 1, balancer);
+            left.fork();
+            int rightCount = new CountTask<>(node.right, depth + 1, balancer).compute();
+            int leftCount = left.join();
+
+            if (leftCount < 0 || rightCount < 0 || leftCount != node.count
+                    || pathWeight(node.left, balancer) != pathWeight(node.right, balancer)) {
+                return -1;
+            }
+
+            return leftCount + node.size() + rightCount;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.mtecresults.ranking;
+
+/**
+ * Weak AVL rebalancing (Haeupler, Sen and Tarjan, "Rank-Balanced Trees"):
+ * node.height is a rank, every child's rank is 1 or 2 below its parent's,
+ * counting a missing child as rank -1, and every leaf has rank 0.
+ */
+final class WavlBalancer extends Balancer {
+
+    private static int rank(Node<?> node) {
+        return node == null ? -1 : node.height;
+    }
+
+    @Override
+    <T> void init(Node<T> node) {
+        node.height = 0;
+    }
+
+    @Override
+    <T> void afterInsert(OrderStatisticTree<T> tree, Node<T> node) {
+        Node<T> parent = node.parent;
+
+        //node is a 0-child, promote while its sibling is a 1-child
+        while (parent != null && rank(parent) == rank(node)) {
+            boolean left = parent.left == node;
+            Node<T> sibling = left ? parent.right : parent.left;
+
+            if (rank(parent) - rank(sibling) == 1) {
+                parent.height++;
+                node = parent;
+                parent = parent.parent;
+                continue;
+            }
+
+            //sibling is a 2-child, one or two rotations finish
+            Node<T> inner = left ? node.right : node.left;
+
+            if (rank(node) - rank(inner) == 2) {
+                rotate(tree, parent, !left);
+                parent.height--;
+            } else {
+                rotate(tree, node, left);
+                rotate(tree, parent, !left);
+                inner.height++;
+                node.height--;
+                parent.height--;
+            }
+            return;
+        }
+    }
+
+    @Override
+    <T> void afterDelete(OrderStatisticTree<T> tree, Node<T> removed) {
+        Node<T> parent = removed.parent;
+        if (parent == null) {
+            return;
+        }
+
+        Node<T> node = removed.left != null ? removed.left : removed.right;
+
+        //a leaf of rank 1 is a 2,2 leaf
+        if (parent.left == null && parent.right == null) {
+            parent.height = 0;
+            node = parent;
+            parent = parent.parent;
+        }
+
+        //node is a 3-child, demote until it is not
+        while (parent != null && rank(parent) - rank(node) == 3) {
+            boolean left = node == null ? parent.left == null : parent.left == node;
+            Node<T> sibling = left ? parent.right : parent.left;
+
+            if (rank(parent) - rank(sibling) == 2) {
+                parent.height--;
+            } else if (rank(sibling) - rank(sibling.left) == 2 && rank(sibling) - rank(sibling.right) == 2) {
+                sibling.height--;
+                parent.height--;
+            } else {
+                Node<T> outer = left ? sibling.right : sibling.left;
+                Node<T> inner = left ? sibling.left : sibling.right;
+
+                if (rank(sibling) - rank(outer) == 1) {
+                    rotate(tree, parent, left);
+                    sibling.height++;
+                    parent.height--;
+                    if (parent.left == null && parent.right == null) {
+                        parent.height--;
+                    }
+                } else {
+                    rotate(tree, sibling, !left);
+                    rotate(tree, parent, left);
+                    inner.height += 2;
+                    sibling.height--;
+                    parent.height -= 2;
+                }
+                return;
+            }
+
+            node = parent;
+            parent = parent.parent;
+        }
+    }
+
+    private static <T> void rotate(OrderStatisticTree<T> tree, Node<T> node, boolean left) {
+        if (left) {
+            tree.rotateLeft(node);
+        } else {
+            tree.rotateRight(node);
+        }
+    }
+
+    @Override
+    <T> boolean isLocallyValid(Node<T> node) {
+        int leftDifference = node.height - rank(node.left);
+        int rightDifference = node.height - rank(node.right);
+
+        return leftDifference >= 1 && leftDifference <= 2
+                && rightDifference >= 1 && rightDifference <= 2
+                && (node.left != null || node.right != null || node.height == 0);
+    }
+}
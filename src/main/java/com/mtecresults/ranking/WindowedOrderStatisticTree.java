@@ -0,0 +1,141 @@
+package com.mtecresults.ranking;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * {@link OrderStatisticSet} over a sliding time window: every element drops
+ * out once timeToLive has passed since it was added.
+ *
+ * Insertion times are kept in arrival order, so expired elements are always at
+ * the head of the queue and eviction costs O(log n) per expired element only.
+ * Eviction runs before every operation, which keeps size, get and rankOf exact
+ * over the live window; {@link #evictExpired()} can also be called from a
+ * background sweeper so that reads rarely find anything to evict.
+ *
+ * All methods are synchronized so a sweeper thread can share the instance.
+ *
+ * @param <T> the actual element type.
+ */
+public class WindowedOrderStatisticTree<T> implements OrderStatisticSet<T> {
+
+    private static final class Entry<T> {
+        final T element;
+        final long added;
+
+        Entry(T element, long added) {
+            this.element = element;
+            this.added = added;
+        }
+    }
+
+    private final OrderStatisticTree<T> tree;
+    private final long timeToLiveNanos;
+    private final LongSupplier clock;
+    //arrival order, may hold entries already removed explicitly or re-added later
+    private final ArrayDeque<Entry<T>> arrivals = new ArrayDeque<>();
+    //time each live element was added, tells stale arrivals from current ones
+    private final Map<T, Long> addedAt = new HashMap<>();
+
+    public WindowedOrderStatisticTree(Comparator<? super T> comparator, long timeToLive, TimeUnit unit) {
+        this(comparator, null, timeToLive, unit, System::nanoTime);
+    }
+
+    //clock returns nanoseconds, like System.nanoTime
+    public WindowedOrderStatisticTree(Comparator<? super T> comparator, ToLongFunction<? super T> scoreFunction,
+                                      long timeToLive, TimeUnit unit, LongSupplier clock) {
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException("The time to live must be positive: " + timeToLive);
+        }
+
+        this.tree = new OrderStatisticTree<>(comparator, scoreFunction);
+        this.timeToLiveNanos = unit.toNanos(timeToLive);
+        this.clock = Objects.requireNonNull(clock, "The clock is null.");
+    }
+
+    //adding an element already in the window does not extend its lifetime
+    @Override
+    public synchronized boolean add(T element) {
+        long now = clock.getAsLong();
+        evictExpired(now);
+
+        if (!tree.add(element)) {
+            return false;
+        }
+
+        arrivals.addLast(new Entry<>(element, now));
+        addedAt.put(element, now);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean remove(T element) {
+        evictExpired(clock.getAsLong());
+
+        if (!tree.remove(element)) {
+            return false;
+        }
+
+        //its arrival entry is skipped once it reaches the head
+        addedAt.remove(element);
+        return true;
+    }
+
+    @Override
+    public synchronized Set<T> get(int rank) {
+        evictExpired(clock.getAsLong());
+        return tree.get(rank);
+    }
+
+    @Override
+    public synchronized int rankOf(T element) {
+        evictExpired(clock.getAsLong());
+        return tree.rankOf(element);
+    }
+
+    @Override
+    public synchronized int size() {
+        evictExpired(clock.getAsLong());
+        return tree.size();
+    }
+
+    public synchronized boolean contains(T element) {
+        evictExpired(clock.getAsLong());
+        return tree.contains(element);
+    }
+
+    //drop every element older than the time to live, returns how many were dropped
+    public synchronized int evictExpired() {
+        return evictExpired(clock.getAsLong());
+    }
+
+    private int evictExpired(long now) {
+        int evicted = 0;
+
+        while (!arrivals.isEmpty() && now - arrivals.peekFirst().added >= timeToLiveNanos) {
+            Entry<T> entry = arrivals.pollFirst();
+            Long added = addedAt.get(entry.element);
+
+            //skip entries for elements removed or re-added since
+            if (added != null && added == entry.added) {
+                addedAt.remove(entry.element);
+                tree.remove(entry.element);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    public synchronized void clear() {
+        tree.clear();
+        arrivals.clear();
+        addedAt.clear();
+    }
+}
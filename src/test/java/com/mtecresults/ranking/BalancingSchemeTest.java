@@ -0,0 +1,140 @@
+package com.mtecresults.ranking;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.mtecresults.ranking.OrderStatisticTreeTest.IntegerWrapper;
+
+public class BalancingSchemeTest {
+
+    private static <T> OrderStatisticTree<T> newTree(Comparator<? super T> comparator, BalancingScheme scheme) {
+        return new OrderStatisticTree<>(comparator, null, null, scheme);
+    }
+
+    @Test
+    public void testRandomChurn() {
+        for (BalancingScheme scheme : BalancingScheme.values()) {
+            OrderStatisticTree<Integer> tree = newTree(Comparator.naturalOrder(), scheme);
+            TreeSet<Integer> set = new TreeSet<>();
+            tree.setIncrementalValidation(true);
+            Random random = new Random(43);
+
+            for (int i = 0; i < 30_000; i++) {
+                int value = random.nextInt(3000);
+                if (random.nextInt(10) < 6) {
+                    assertEquals(scheme.name(), set.add(value), tree.add(value));
+                } else {
+                    assertEquals(scheme.name(), set.remove(value), tree.remove(value));
+                }
+
+                if (i % 1000 == 0) {
+                    assertTrue(scheme.name(), tree.isHealthy());
+                    assertTrue(scheme.name(), tree.isWellIndexed());
+                    int rank = 1;
+                    for (Integer expected : set) {
+                        assertEquals(scheme.name(), rank, tree.rankOf(expected));
+                        assertEquals(scheme.name(), Collections.singleton(expected), tree.get(rank));
+                        rank++;
+                    }
+                }
+            }
+
+            assertEquals(scheme, tree.getBalancingScheme());
+            assertEquals(set.size(), tree.size());
+            assertTrue(scheme.name(), tree.isHealthy(ForkJoinPool.commonPool()));
+        }
+    }
+
+    @Test
+    public void testSortedInsertAndRemove() {
+        for (BalancingScheme scheme : BalancingScheme.values()) {
+            OrderStatisticTree<Integer> tree = newTree(Comparator.naturalOrder(), scheme);
+            tree.setIncrementalValidation(true);
+
+            for (int i = 0; i < 5000; i++) {
+                assertTrue(tree.add(i));
+            }
+            for (int i = 9999; i >= 5000; i--) {
+                assertTrue(tree.addFromFinger(i));
+            }
+            assertTrue(scheme.name(), tree.isHealthy());
+            assertEquals(5000, tree.rankOf(4999));
+            assertEquals(5002, tree.rankOf(5001));
+
+            for (int i = 0; i < 10_000; i += 2) {
+                assertTrue(tree.remove(i));
+            }
+            assertTrue(scheme.name(), tree.isHealthy());
+            assertEquals(5000, tree.size());
+            assertEquals(Collections.singleton(1), tree.get(1));
+
+            for (int i = 9999; i >= 0; i--) {
+                assertEquals(i % 2 == 1, tree.remove(i));
+            }
+            assertTrue(tree.isEmpty());
+            assertTrue(tree.isHealthy());
+        }
+    }
+
+    @Test
+    public void testTiesAndCopy() {
+        for (BalancingScheme scheme : BalancingScheme.values()) {
+            OrderStatisticTree<IntegerWrapper> tree = newTree(Comparator.naturalOrder(), scheme);
+            tree.setIncrementalValidation(true);
+            List<IntegerWrapper> added = new ArrayList<>();
+            Random random = new Random(143);
+
+            for (int i = 0; i < 20_000; i++) {
+                if (added.isEmpty() || random.nextInt(10) < 7) {
+                    IntegerWrapper toAdd = new IntegerWrapper(random.nextInt(500), i);
+                    added.add(toAdd);
+                    assertTrue(tree.add(toAdd));
+                } else {
+                    assertTrue(tree.remove(added.remove(random.nextInt(added.size()))));
+                }
+            }
+
+            OrderStatisticTree<IntegerWrapper> copy = tree.copy();
+            assertEquals(scheme, copy.getBalancingScheme());
+            assertTrue(scheme.name(), copy.isHealthy());
+            for (IntegerWrapper element : added) {
+                assertEquals(tree.rankOf(element), copy.rankOf(element));
+            }
+            for (IntegerWrapper element : added) {
+                assertTrue(copy.remove(element));
+            }
+            assertTrue(copy.isEmpty());
+            assertEquals(added.size(), tree.size());
+        }
+    }
+
+    @Test
+    public void testHealthCheckDetectsBrokenScheme() throws Exception {
+        Field rootField = OrderStatisticTree.class.getDeclaredField("root");
+        rootField.setAccessible(true);
+
+        for (BalancingScheme scheme : BalancingScheme.values()) {
+            OrderStatisticTree<Integer> tree = newTree(Comparator.naturalOrder(), scheme);
+            for (int i = 0; i < 100; i++) {
+                tree.add(i);
+            }
+            assertTrue(tree.isHealthy());
+
+            //start below the root, a random treap can put the minimum at the root
+            Node<?> root = (Node<?>) rootField.get(tree);
+            Node<?> node = root.left != null ? root.left : root.right;
+            while (node.left != null) {
+                node = node.left;
+            }
+            //a wrong height or rank, an extra or missing black, a priority above the parent's
+            node.height = scheme == BalancingScheme.RED_BLACK ? node.height ^ 1 : Integer.MAX_VALUE;
+
+            assertFalse(scheme.name(), tree.isHealthy());
+            assertFalse(scheme.name(), tree.isHealthy(ForkJoinPool.commonPool()));
+        }
+    }
+}
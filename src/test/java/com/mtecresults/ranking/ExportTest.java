@@ -0,0 +1,96 @@
+package com.mtecresults.ranking;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ExportTest {
+
+    private static final RecordEncoder<OrderStatisticTreeTest.IntegerWrapper> CSV =
+            new RecordEncoder<OrderStatisticTreeTest.IntegerWrapper>() {
+        @Override
+        public void begin(ByteBuffer buffer) {
+            buffer.put("rank,value,id\n".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        @Override
+        public void encode(OrderStatisticTreeTest.IntegerWrapper element, int rank, ByteBuffer buffer) {
+            RecordEncoder.putDecimal(buffer, rank);
+            buffer.put((byte) ',');
+            RecordEncoder.putDecimal(buffer, element.value);
+            buffer.put((byte) ',');
+            RecordEncoder.putDecimal(buffer, element.id);
+            buffer.put((byte) '\n');
+        }
+    };
+
+    private final OrderStatisticTree<OrderStatisticTreeTest.IntegerWrapper> tree = new OrderStatisticTree<>();
+
+    private List<String> export(int from, int to, ByteBuffer buffer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int written = tree.exportTo(Channels.newChannel(out), CSV, from, to, buffer);
+        List<String> lines = new ArrayList<>(Arrays.asList(out.toString("US-ASCII").split("\n")));
+        assertEquals("rank,value,id", lines.remove(0));
+        assertEquals(to - from + 1, written);
+        assertEquals(written, lines.size());
+        return lines;
+    }
+
+    @Test
+    public void testExportAll() throws IOException {
+        Random random = new Random(21);
+        for (int i = 0; i < 3000; i++) {
+            tree.add(new OrderStatisticTreeTest.IntegerWrapper(random.nextInt(1000) - 500, i));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(3000, tree.exportTo(Channels.newChannel(out), CSV));
+        List<String> lines = export(1, tree.size(), ByteBuffer.allocate(64));
+
+        assertEquals(Arrays.asList(out.toString("US-ASCII").split("\n")).subList(1, 3001), lines);
+        Set<Integer> ids = new HashSet<>();
+        for (String line : lines) {
+            String[] fields = line.split(",");
+            OrderStatisticTreeTest.IntegerWrapper element = new OrderStatisticTreeTest.IntegerWrapper(
+                    Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+            assertEquals(tree.rankOf(element), Integer.parseInt(fields[0]));
+            ids.add(element.id);
+        }
+        assertEquals(3000, ids.size());
+    }
+
+    @Test
+    public void testPagesSplitTies() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            tree.add(new OrderStatisticTreeTest.IntegerWrapper(i / 7, i));
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+        List<String> pages = new ArrayList<>();
+        for (int from = 1; from <= 100; from += 10) {
+            pages.addAll(export(from, Math.min(100, from + 9), buffer));
+        }
+
+        assertEquals(export(1, 100, buffer), pages);
+        assertTrue(export(5, 4, buffer).isEmpty());
+        assertTrue(pages.get(9).startsWith("8,1,"));
+        assertTrue(pages.get(10).startsWith("8,1,"));
+    }
+
+    @Test
+    public void testPutDecimal() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        for (long value : new long[]{0, 7, -7, 1234567890123L, Long.MIN_VALUE, Long.MAX_VALUE}) {
+            buffer.clear();
+            RecordEncoder.putDecimal(buffer, value);
+            assertEquals(Long.toString(value), new String(buffer.array(), 0, buffer.position(),
+                    StandardCharsets.US_ASCII));
+        }
+    }
+}
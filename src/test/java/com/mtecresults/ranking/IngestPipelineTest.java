@@ -0,0 +1,200 @@
+package com.mtecresults.ranking;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class IngestPipelineTest {
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        OrderStatisticTree<Integer> tree = new OrderStatisticTree<>();
+        IngestPipeline<Integer> pipeline = new IngestPipeline<>(tree, 64, 16, 1, TimeUnit.MILLISECONDS);
+        List<Thread> producers = new ArrayList<>();
+
+        for (int p = 0; p < 4; p++) {
+            final int offset = p * 10_000;
+            Thread producer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 10_000; i++) {
+                        pipeline.add(offset + i);
+                    }
+                    //rescore every tenth entry
+                    for (int i = 0; i < 10_000; i += 10) {
+                        pipeline.replace(offset + i, -(offset + i) - 1);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            producers.add(producer);
+            producer.start();
+        }
+
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        pipeline.close();
+
+        assertEquals(40_000, tree.size());
+        assertEquals(40_000, pipeline.view().size());
+        assertEquals(-1, pipeline.view().rankOf(0));
+        assertEquals(4_001, pipeline.view().rankOf(1));
+        assertTrue(tree.isHealthy());
+
+        IngestPipeline.Metrics metrics = pipeline.metrics();
+        assertEquals(44_000, metrics.getSubmitted());
+        assertEquals(44_000, metrics.getApplied());
+        assertEquals(0, metrics.getFailed());
+        assertTrue(metrics.getMaxBatchSize() <= 16);
+        assertEquals(metrics.getBatches(), pipeline.publishedBatches());
+    }
+
+    @Test
+    public void testReplaceOfAbsentElementChangesNothing() throws Exception {
+        OrderStatisticTree<Integer> tree = new OrderStatisticTree<>();
+        try (IngestPipeline<Integer> pipeline = new IngestPipeline<>(tree, 4, 4, 0, TimeUnit.MILLISECONDS)) {
+            pipeline.add(1);
+            pipeline.add(2);
+            pipeline.replace(3, 4);
+            pipeline.replace(1, 2);
+        }
+
+        assertEquals(2, tree.size());
+        assertTrue(tree.contains(1));
+        assertTrue(tree.contains(2));
+        assertFalse(tree.contains(4));
+    }
+
+    @Test
+    public void testFailedReplaceKeepsOldElement() throws Exception {
+        //the comparator rejects 13
+        OrderStatisticTree<Integer> tree = new OrderStatisticTree<>((a, b) -> {
+            if (a == 13 || b == 13) {
+                throw new IllegalArgumentException("13 is not comparable");
+            }
+            return Integer.compare(a, b);
+        });
+        IngestPipeline<Integer> pipeline = new IngestPipeline<>(tree, 4, 4, 0, TimeUnit.MILLISECONDS);
+        pipeline.add(5);
+        pipeline.add(7);
+        pipeline.replace(5, 13);
+        pipeline.close();
+
+        assertEquals(2, tree.size());
+        assertTrue(tree.contains(5));
+        assertEquals(1, tree.rankOf(5));
+        assertEquals(1, pipeline.metrics().getFailed());
+        assertTrue(tree.isHealthy());
+    }
+
+    @Test
+    public void testWriterDeathReleasesProducersAndClose() throws Exception {
+        //the writer blocks on 666 until the producers fill the buffer, then dies of an Error
+        CountDownLatch blocked = new CountDownLatch(1);
+        OrderStatisticTree<Integer> tree = new OrderStatisticTree<>((a, b) -> {
+            if (a == 666 || b == 666) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new StackOverflowError();
+            }
+            return Integer.compare(a, b);
+        });
+        IngestPipeline<Integer> pipeline = new IngestPipeline<>(tree, 2, 1, 0, TimeUnit.MILLISECONDS);
+        pipeline.add(1);
+        pipeline.add(666);
+
+        AtomicInteger rejected = new AtomicInteger();
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            Thread producer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 1000; i++) {
+                        pipeline.add(1000 + i);
+                    }
+                } catch (IllegalStateException e) {
+                    rejected.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            producers.add(producer);
+            producer.start();
+        }
+
+        Thread.sleep(100);
+        blocked.countDown();
+        for (Thread producer : producers) {
+            producer.join(10_000);
+            assertFalse(producer.isAlive());
+        }
+        assertEquals(4, rejected.get());
+
+        Thread closer = new Thread(pipeline::close);
+        closer.start();
+        closer.join(10_000);
+        assertFalse(closer.isAlive());
+        assertEquals(1, tree.size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testViewIsReadOnly() throws Exception {
+        try (IngestPipeline<Integer> pipeline =
+                     new IngestPipeline<>(new OrderStatisticTree<>(), 4, 4, 0, TimeUnit.MILLISECONDS)) {
+            pipeline.view().add(1);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSubmitAfterClose() throws Exception {
+        IngestPipeline<Integer> pipeline =
+                new IngestPipeline<>(new OrderStatisticTree<>(), 4, 4, 0, TimeUnit.MILLISECONDS);
+        pipeline.close();
+        pipeline.add(1);
+    }
+
+    @Test
+    public void testCloseAppliesEveryAcceptedCommand() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            OrderStatisticTree<Integer> tree = new OrderStatisticTree<>();
+            IngestPipeline<Integer> pipeline = new IngestPipeline<>(tree, 8, 4, 1, TimeUnit.MILLISECONDS);
+            AtomicInteger accepted = new AtomicInteger();
+            List<Thread> producers = new ArrayList<>();
+
+            for (int p = 0; p < 3; p++) {
+                final int offset = p * 1_000_000;
+                Thread producer = new Thread(() -> {
+                    try {
+                        for (int i = 0; ; i++) {
+                            pipeline.add(offset + i);
+                            accepted.incrementAndGet();
+                        }
+                    } catch (IllegalStateException e) {
+                        //closed
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                producers.add(producer);
+                producer.start();
+            }
+
+            Thread.sleep(5);
+            pipeline.close();
+            for (Thread producer : producers) {
+                producer.join();
+            }
+
+            assertEquals(accepted.get(), tree.size());
+            assertEquals(accepted.get(), pipeline.metrics().getApplied());
+        }
+    }
+}
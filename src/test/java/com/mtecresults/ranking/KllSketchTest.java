@@ -0,0 +1,95 @@
+package com.mtecresults.ranking;
+
+import java.util.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class KllSketchTest {
+
+    @Test
+    public void testExactWhileSmall() {
+        KllSketch<Integer> sketch = new KllSketch<>(Comparator.naturalOrder(), 200, new Random(1));
+
+        for (int i = 100; i > 0; i--) {
+            sketch.add(i);
+        }
+
+        assertEquals(100, sketch.size());
+        assertEquals(100, sketch.getRetainedItems());
+        assertEquals(1, sketch.rankOf(1));
+        assertEquals(50, sketch.rankOf(50));
+        assertEquals(101, sketch.rankOf(1000));
+        assertEquals(Collections.singleton(73), sketch.get(73));
+    }
+
+    @Test
+    public void testErrorBound() {
+        Random random = new Random(2);
+        KllSketch<Integer> sketch = new KllSketch<>(Comparator.naturalOrder(), 200, random);
+        OrderStatisticTree<Integer> exact = new OrderStatisticTree<>();
+
+        for (int i = 0; i < 200_000; i++) {
+            int value = random.nextInt();
+            if (exact.add(value)) {
+                sketch.add(value);
+            }
+        }
+
+        assertTrue(sketch.getRetainedItems() < 4 * 200);
+        assertEquals(exact.size(), sketch.size());
+        double allowed = sketch.getNormalizedRankError() * exact.size();
+
+        for (int i = 0; i < 1000; i++) {
+            int probe = random.nextInt();
+            int rank = exact.rankOf(probe);
+            if (rank < 0) {
+                rank = exact.prospectiveRank(probe);
+            }
+            assertEquals(rank, sketch.rankOf(probe), allowed);
+
+            int index = 1 + random.nextInt(exact.size());
+            int value = sketch.get(index).iterator().next();
+            assertEquals(index, exact.rankOf(value), allowed);
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        Random random = new Random(3);
+        OrderStatisticTree<Integer> exact = new OrderStatisticTree<>();
+        KllSketch<Integer> merged = new KllSketch<>(Comparator.naturalOrder(), 100, random);
+
+        for (int s = 0; s < 8; s++) {
+            KllSketch<Integer> part = new KllSketch<>(Comparator.naturalOrder(), 100, random);
+            for (int i = 0; i < 20_000; i++) {
+                int value = random.nextInt();
+                if (exact.add(value)) {
+                    part.add(value);
+                }
+            }
+            merged.merge(part);
+        }
+
+        assertEquals(exact.size(), merged.size());
+        assertTrue(merged.getRetainedItems() < 4 * 100);
+        double allowed = merged.getNormalizedRankError() * exact.size();
+
+        for (int i = 0; i < 1000; i++) {
+            int probe = random.nextInt();
+            assertEquals(exact.prospectiveRank(probe), merged.rankOf(probe), allowed);
+        }
+    }
+
+    @Test
+    public void testForEpsilon() {
+        KllSketch<Integer> sketch = KllSketch.forEpsilon(Comparator.naturalOrder(), 0.01);
+        assertTrue(sketch.getNormalizedRankError() <= 0.01);
+        assertTrue(KllSketch.normalizedRankError(sketch.getK() - 1) > 0.01);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testRemove() {
+        new KllSketch<Integer>(Comparator.naturalOrder()).remove(1);
+    }
+}
@@ -0,0 +1,141 @@
+package com.mtecresults.ranking;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.mtecresults.ranking.OrderStatisticTreeTest.IntegerWrapper;
+
+public class LargeOrderStatisticTreeTest {
+
+    @Test
+    public void testMatchesIntTree() {
+        LargeOrderStatisticTree<IntegerWrapper> large = new LargeOrderStatisticTree<>();
+        OrderStatisticTree<IntegerWrapper> tree = new OrderStatisticTree<>();
+        List<IntegerWrapper> added = new ArrayList<>();
+        Random random = new Random(148);
+
+        for (int i = 0; i < 30_000; i++) {
+            if (added.isEmpty() || random.nextInt(10) < 6) {
+                IntegerWrapper toAdd = new IntegerWrapper(random.nextInt(2000), i);
+                added.add(toAdd);
+                assertTrue(large.add(toAdd));
+                assertTrue(tree.add(toAdd));
+                assertFalse(large.add(toAdd));
+            } else {
+                IntegerWrapper toRemove = added.remove(random.nextInt(added.size()));
+                assertTrue(large.remove(toRemove));
+                assertTrue(tree.remove(toRemove));
+                assertFalse(large.remove(toRemove));
+            }
+
+            assertEquals(tree.size(), large.size());
+            if (added.isEmpty()) {
+                continue;
+            }
+            IntegerWrapper probe = added.get(random.nextInt(added.size()));
+            assertEquals(tree.rankOf(probe), large.rankOf(probe));
+            int rank = 1 + random.nextInt(tree.size());
+            assertEquals(tree.get(rank), large.get(rank));
+        }
+
+        assertTrue(large.isHealthy());
+        for (IntegerWrapper element : added) {
+            assertTrue(large.contains(element));
+            assertEquals(tree.rankOf(element), large.rankOf(element));
+        }
+        assertEquals(-1, large.rankOf(new IntegerWrapper(5, -1)));
+    }
+
+    @Test
+    public void testCountsPastIntRange() throws Exception {
+        LargeOrderStatisticTree<Integer> tree = new LargeOrderStatisticTree<>();
+        tree.add(1);
+        tree.add(2);
+        tree.add(3);
+
+        //pretend 2^32 more keys sit left of the root 2, as test FullTreeRejectsAdd does for size
+        long extra = 1L << 32;
+        Field rootField = LargeOrderStatisticTree.class.getDeclaredField("root");
+        rootField.setAccessible(true);
+        Object root = rootField.get(tree);
+        Field countField = root.getClass().getDeclaredField("count");
+        countField.setAccessible(true);
+        countField.setLong(root, countField.getLong(root) + extra);
+        Field sizeField = LargeOrderStatisticTree.class.getDeclaredField("size");
+        sizeField.setAccessible(true);
+        sizeField.setLong(tree, tree.size() + extra);
+
+        assertEquals(extra + 3, tree.size());
+        assertEquals(1L, tree.rankOf(1));
+        assertEquals(extra + 2, tree.rankOf(2));
+        assertEquals(Collections.singleton(3), tree.get(extra + 3));
+
+        //6 rotates the root left, moving its large count into the new root's
+        for (int i = 4; i <= 6; i++) {
+            assertTrue(tree.add(i));
+        }
+        assertNotSame(root, rootField.get(tree));
+        assertEquals(extra + 6, tree.size());
+        assertEquals(extra + 4, tree.rankOf(4));
+        assertEquals(extra + 6, tree.rankOf(6));
+        assertEquals(Collections.singleton(5), tree.get(extra + 5));
+
+        assertTrue(tree.add(0));
+        assertTrue(tree.remove(3));
+        assertEquals(1L, tree.rankOf(0));
+        assertEquals(extra + 3, tree.rankOf(2));
+        assertEquals(extra + 6, tree.rankOf(6));
+        assertEquals(Collections.singleton(6), tree.get(extra + 6));
+        try {
+            tree.get(extra + 7);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    @Test
+    public void testSortedInsertAndRemove() {
+        LargeOrderStatisticTree<Integer> tree = new LargeOrderStatisticTree<>();
+
+        for (int i = 0; i < 10_000; i++) {
+            tree.add(i);
+        }
+        assertTrue(tree.isHealthy());
+        assertEquals(10_000L, tree.size());
+        assertEquals(Collections.singleton(4321), tree.get(4322));
+
+        for (int i = 0; i < 10_000; i += 2) {
+            assertTrue(tree.remove(i));
+        }
+        assertTrue(tree.isHealthy());
+        assertEquals(2500L, tree.rankOf(4999));
+
+        tree.clear();
+        assertTrue(tree.isEmpty());
+        assertTrue(tree.isHealthy());
+    }
+
+    @Test
+    public void testGhostRanks() {
+        LargeOrderStatisticTree<IntegerWrapper> tree = new LargeOrderStatisticTree<>();
+        IntegerWrapper a = new IntegerWrapper(1, 0);
+        IntegerWrapper b = new IntegerWrapper(1, 1);
+        tree.add(a);
+        tree.add(b);
+        tree.add(new IntegerWrapper(2, 2));
+
+        assertEquals(new HashSet<>(Arrays.asList(a, b)), tree.get(1));
+        assertTrue(tree.get(2).isEmpty());
+        assertEquals(3L, tree.rankOf(new IntegerWrapper(2, 2)));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testRankBeyondIntRange() {
+        LargeOrderStatisticTree<Integer> tree = new LargeOrderStatisticTree<>();
+        tree.add(1);
+        tree.get(3_000_000_000L);
+    }
+}
@@ -0,0 +1,54 @@
+package com.mtecresults.ranking;
+
+import java.util.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        long previousHighest = -1;
+        for (int bucket = 0; bucket < 3000; bucket++) {
+            long lowest = LatencyHistogram.lowestValue(bucket);
+            assertEquals(previousHighest + 1, lowest);
+            assertEquals(bucket, LatencyHistogram.bucket(lowest));
+            assertEquals(bucket, LatencyHistogram.bucket(LatencyHistogram.highestValue(bucket)));
+            previousHighest = LatencyHistogram.highestValue(bucket);
+        }
+        assertTrue(LatencyHistogram.bucket(Long.MAX_VALUE) >= 0);
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[100_000];
+        Random random = new Random(9);
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 20);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double percentile : new double[]{50, 90, 99, 99.9, 99.99}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            assertEquals(exact, histogram.getValueAtPercentile(percentile), exact / 64.0 + 1);
+        }
+        assertEquals(values[values.length - 1], histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testAdd() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record(10);
+        b.record(1_000_000);
+        a.add(b);
+
+        assertEquals(2, a.getCount());
+        assertEquals(1_000_000, a.getMax());
+        assertEquals(10, a.getValueAtPercentile(50));
+    }
+}
@@ -0,0 +1,40 @@
+package com.mtecresults.ranking;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LoadTestTest {
+
+    //a short run of every implementation, each writer finishes its whole
+    //partition well within the run
+    @Test
+    public void testEveryImplementationRuns() throws Exception {
+        for (String impl : new String[]{"tree", "large", "sketch", "pipeline"}) {
+            LoadTest.Workload workload = new LoadTest.Workload();
+            workload.set("impl", impl);
+            workload.set("participants", "2000");
+            workload.set("initial", "1000");
+            workload.set("readers", "2");
+            workload.set("writers", "2");
+            workload.set("warmupSeconds", "0");
+            workload.set("seconds", "1");
+            workload.set("burstPauseMillis", "1");
+            workload.set("rescoreFraction", "sketch".equals(impl) ? "0" : "0.2");
+
+            OrderStatisticSet<LoadTest.Participant> set = LoadTest.create(workload);
+            try {
+                LoadTest.run(set, workload);
+            } finally {
+                LoadTest.close(set);
+            }
+            assertEquals(impl, 2000, set.size());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSketchRejectsRescoring() {
+        LoadTest.Workload workload = new LoadTest.Workload();
+        workload.set("impl", "sketch");
+        LoadTest.create(workload);
+    }
+}
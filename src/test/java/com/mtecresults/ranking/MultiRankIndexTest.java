@@ -0,0 +1,131 @@
+package com.mtecresults.ranking;
+
+import java.util.*;
+import java.util.function.ToLongFunction;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MultiRankIndexTest {
+
+    private static class Result {
+        final int bib;
+        final long time;
+        final char gender;
+        final int age;
+
+        Result(int bib, long time, char gender, int age) {
+            this.bib = bib;
+            this.time = time;
+            this.gender = gender;
+            this.age = age;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Result && ((Result) o).bib == bib;
+        }
+
+        @Override
+        public int hashCode() {
+            return bib;
+        }
+    }
+
+    private final Comparator<Result> byTime = Comparator.comparingLong(r -> r.time);
+    private final ToLongFunction<Result> time = r -> r.time;
+
+    private MultiRankIndex<Result> newIndex() {
+        return new MultiRankIndex<Result>()
+                .addIndex("overall", byTime, time, r -> null)
+                .addIndex("gender", byTime, time, r -> r.gender)
+                .addIndex("age", byTime, time, r -> r.age / 10 * 10);
+    }
+
+    @Test
+    public void testRanksInAllDivisions() {
+        MultiRankIndex<Result> index = newIndex();
+        Result a = new Result(1, 100, 'F', 34);
+        Result b = new Result(2, 90, 'M', 38);
+        Result c = new Result(3, 110, 'F', 41);
+        Result d = new Result(4, 95, 'F', 33);
+
+        assertTrue(index.add(a));
+        assertTrue(index.add(b));
+        assertTrue(index.add(c));
+        assertTrue(index.add(d));
+        assertFalse(index.add(new Result(4, 95, 'F', 33)));
+        assertEquals(4, index.size());
+
+        Map<String, Integer> ranks = index.ranksOf(a);
+        assertEquals(Integer.valueOf(3), ranks.get("overall"));
+        assertEquals(Integer.valueOf(2), ranks.get("gender"));
+        assertEquals(Integer.valueOf(3), ranks.get("age"));
+        assertEquals(1, index.rankOf("age", c));
+        assertEquals(2, index.size("gender", 'M') + index.size("age", 40));
+        assertEquals(d, index.get("gender", 'F', 1).iterator().next());
+
+        //rescore a faster
+        Result faster = new Result(1, 80, 'F', 34);
+        assertTrue(index.replace(a, faster));
+        assertEquals(Integer.valueOf(1), index.ranksOf(faster).get("overall"));
+        assertEquals(Integer.valueOf(1), index.ranksOf(faster).get("age"));
+        assertTrue(index.remove(b));
+        assertFalse(index.divisions("gender").contains('M'));
+        assertEquals(-1, index.rankOf("overall", b));
+    }
+
+    @Test
+    public void testFailedUpdateIsRolledBack() {
+        Comparator<Result> failsOnNegative = (x, y) -> {
+            if (x.time < 0 || y.time < 0) {
+                throw new IllegalArgumentException("negative time");
+            }
+            return Long.compare(x.time, y.time);
+        };
+        MultiRankIndex<Result> index = new MultiRankIndex<Result>()
+                .addIndex("overall", byTime)
+                .addIndex("gender", byTime, r -> r.gender)
+                .addIndex("strict", failsOnNegative, r -> r.gender);
+
+        Result ok = new Result(1, 100, 'F', 30);
+        index.add(ok);
+
+        try {
+            index.add(new Result(2, -5, 'F', 30));
+            fail("comparator should have thrown");
+        } catch (IllegalArgumentException expected) {
+            //expected
+        }
+
+        assertEquals(1, index.size());
+        assertEquals(1, index.size("overall", null));
+        assertEquals(1, index.size("gender", 'F'));
+        assertEquals(-1, index.rankOf("overall", new Result(2, -5, 'F', 30)));
+        assertEquals(Integer.valueOf(1), index.ranksOf(ok).get("strict"));
+    }
+
+    @Test
+    public void testFailedUpdateLeavesNoEmptyDivision() {
+        Comparator<Result> failsOnNegative = (x, y) -> {
+            if (x.time < 0 || y.time < 0) {
+                throw new IllegalArgumentException("negative time");
+            }
+            return Long.compare(x.time, y.time);
+        };
+        MultiRankIndex<Result> index = new MultiRankIndex<Result>()
+                .addIndex("gender", byTime, r -> r.gender)
+                .addIndex("strict", failsOnNegative);
+        index.add(new Result(1, 100, 'F', 30));
+
+        try {
+            index.add(new Result(2, -5, 'M', 30));
+            fail("comparator should have thrown");
+        } catch (IllegalArgumentException expected) {
+            //expected
+        }
+
+        assertEquals(Collections.singleton('F'), index.divisions("gender"));
+        assertEquals(0, index.size("gender", 'M'));
+    }
+}
@@ -0,0 +1,133 @@
+package com.mtecresults.ranking;
+
+import java.util.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.junit.Before;
+
+public class OrderStatisticNavigableSetTest {
+
+    private final OrderStatisticTree<Integer> tree = new OrderStatisticTree<>();
+    private final NavigableSet<Integer> view = tree.asNavigableSet();
+    private final TreeSet<Integer> set = new TreeSet<>();
+
+    @Before
+    public void before() {
+        Random random = new Random(33);
+        for (int i = 0; i < 500; i++) {
+            int value = random.nextInt(2_000);
+            set.add(value);
+            tree.add(value);
+        }
+    }
+
+    @Test
+    public void testMatchesTreeSet() {
+        checkSame(set, view);
+        checkSame(set.descendingSet(), view.descendingSet());
+        checkSame(set.subSet(100, true, 900, false), view.subSet(100, true, 900, false));
+        checkSame(set.headSet(700, true), view.headSet(700, true));
+        checkSame(set.tailSet(1_500, false), view.tailSet(1_500, false));
+        checkSame(set.descendingSet().headSet(1_200, false), view.descendingSet().headSet(1_200, false));
+        checkSame(set.descendingSet().subSet(1_800, true, 300, true),
+                view.descendingSet().subSet(1_800, true, 300, true));
+        checkSame(set.subSet(100, true, 900, false).tailSet(400, true),
+                view.subSet(100, true, 900, false).tailSet(400, true));
+    }
+
+    private void checkSame(NavigableSet<Integer> expected, NavigableSet<Integer> actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.isEmpty(), actual.isEmpty());
+        assertEquals(new ArrayList<>(expected), new ArrayList<>(actual));
+
+        List<Integer> descending = new ArrayList<>();
+        actual.descendingIterator().forEachRemaining(descending::add);
+        List<Integer> expectedDescending = new ArrayList<>();
+        expected.descendingIterator().forEachRemaining(expectedDescending::add);
+        assertEquals(expectedDescending, descending);
+
+        if (!expected.isEmpty()) {
+            assertEquals(expected.first(), actual.first());
+            assertEquals(expected.last(), actual.last());
+        }
+
+        for (int i = -10; i < 2_010; i += 7) {
+            assertEquals(expected.contains(i), actual.contains(i));
+            assertEquals(expected.floor(i), actual.floor(i));
+            assertEquals(expected.ceiling(i), actual.ceiling(i));
+            assertEquals(expected.higher(i), actual.higher(i));
+            assertEquals(expected.lower(i), actual.lower(i));
+        }
+    }
+
+    @Test
+    public void testViewsAreLive() {
+        NavigableSet<Integer> head = view.headSet(1_000, false);
+        int before = head.size();
+
+        assertTrue(head.add(-5));
+        assertEquals(before + 1, head.size());
+        assertTrue(tree.contains(-5));
+        tree.add(-6);
+        assertEquals(Integer.valueOf(-6), head.first());
+        assertEquals(Integer.valueOf(-6), head.pollFirst());
+        assertFalse(tree.contains(-6));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddOutOfRange() {
+        view.headSet(1_000, false).add(1_000);
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        NavigableSet<Integer> sub = view.subSet(500, true, 1_500, true);
+        Iterator<Integer> iterator = sub.iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next() % 2 == 0) {
+                iterator.remove();
+            }
+        }
+
+        set.subSet(500, true, 1_500, true).removeIf(i -> i % 2 == 0);
+        assertEquals(new ArrayList<>(set), new ArrayList<>(view));
+        assertTrue(tree.isHealthy());
+
+        sub.clear();
+        assertTrue(sub.isEmpty());
+        assertEquals(set.size() - set.subSet(500, true, 1_500, true).size(), tree.size());
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void testIteratorFailsFast() {
+        Iterator<Integer> iterator = view.iterator();
+        iterator.next();
+        tree.add(-1);
+        iterator.next();
+    }
+
+    @Test
+    public void testTies() {
+        OrderStatisticTree<OrderStatisticTreeTest.IntegerWrapper> ties = new OrderStatisticTree<>();
+        for (int i = 0; i < 30; i++) {
+            ties.add(new OrderStatisticTreeTest.IntegerWrapper(i / 5, i));
+        }
+        NavigableSet<OrderStatisticTreeTest.IntegerWrapper> tiesView = ties.asNavigableSet();
+
+        assertEquals(30, tiesView.size());
+        assertEquals(30, new HashSet<>(tiesView).size());
+        assertEquals(10, tiesView.subSet(new OrderStatisticTreeTest.IntegerWrapper(2, -1), true,
+                new OrderStatisticTreeTest.IntegerWrapper(3, -1), true).size());
+
+        Iterator<OrderStatisticTreeTest.IntegerWrapper> iterator = tiesView.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().id % 3 == 0) {
+                iterator.remove();
+            }
+        }
+        assertEquals(20, ties.size());
+        assertTrue(ties.isHealthy());
+    }
+}
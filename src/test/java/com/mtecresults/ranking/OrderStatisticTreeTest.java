@@ -1,6 +1,13 @@
 package com.mtecresults.ranking;
 
+import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -422,4 +429,1053 @@ public class OrderStatisticTreeTest {
             assertTrue(healthy);
         }
     }
+
+    @Test
+    public void testIncrementalValidation() {
+        OrderStatisticTree<IntegerWrapper> tree = new OrderStatisticTree<>();
+        tree.setIncrementalValidation(true);
+        assertTrue(tree.isIncrementalValidation());
+        List<IntegerWrapper> added = new ArrayList<>();
+        Random random = new Random(26);
+
+        for (int i = 0; i < 20_000; i++) {
+            if (added.isEmpty() || random.nextInt(10) < 7) {
+                IntegerWrapper toAdd = new IntegerWrapper(random.nextInt(500), i);
+                added.add(toAdd);
+                assertTrue(tree.add(toAdd));
+            } else {
+                assertTrue(tree.remove(added.remove(random.nextInt(added.size()))));
+            }
+        }
+
+        assertTrue(tree.isHealthy());
+        assertTrue(tree.isHealthy(ForkJoinPool.commonPool()));
+    }
+
+    @Test
+    public void testParallelHealthCheck() {
+        for (int i = 0; i < 200_000; i++) {
+            tree.add(i);
+        }
+
+        assertTrue(tree.isHealthy(ForkJoinPool.commonPool()));
+        assertTrue(tree.isHealthy());
+    }
+
+    @Test
+    public void testHealthCheckDetectsBadCount() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            tree.add(i);
+        }
+
+        Field rootField = OrderStatisticTree.class.getDeclaredField("root");
+        rootField.setAccessible(true);
+        Node<?> root = (Node<?>) rootField.get(tree);
+        root.left.count++;
+
+        assertFalse(tree.isHealthy());
+        assertFalse(tree.isHealthy(ForkJoinPool.commonPool()));
+
+        //the incremental check sees a count on the path only locally, so it
+        //is given one it can always catch: the root's, checked with the total
+        root.left.count--;
+        root.count++;
+        tree.setIncrementalValidation(true);
+        try {
+            tree.add(-1);
+            fail("corrupt count not detected");
+        } catch (IllegalStateException expected) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testIncrementalValidationChecksPathLocally() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            tree.add(i);
+        }
+        Field rootField = OrderStatisticTree.class.getDeclaredField("root");
+        rootField.setAccessible(true);
+        Node<?> node = (Node<?>) rootField.get(tree);
+        while (node.left.left != null) {
+            node = node.left;
+        }
+        //parent of the minimum, its left child has no right subtree
+        node.count++;
+
+        tree.setIncrementalValidation(true);
+        try {
+            tree.add(-1);
+            fail("corrupt count not detected");
+        } catch (IllegalStateException expected) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testComparator() {
+        OrderStatisticTree<Integer> reversed = new OrderStatisticTree<>(Comparator.reverseOrder());
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(reversed.add(i));
+        }
+
+        assertEquals(1, reversed.rankOf(99));
+        assertEquals(100, reversed.rankOf(0));
+        assertEquals(Integer.valueOf(97), reversed.get(3).iterator().next());
+        assertTrue(reversed.remove(99));
+        assertEquals(1, reversed.rankOf(98));
+        assertTrue(reversed.isHealthy());
+    }
+
+    @Test
+    public void testScoreFunction() {
+        //score decides the order, comparator only breaks ties between equal scores
+        Comparator<IntegerWrapper> byValue = Comparator.comparing(w -> w.value);
+        OrderStatisticTree<IntegerWrapper> scored = new OrderStatisticTree<>(byValue, w -> w.value / 10);
+        OrderStatisticTree<IntegerWrapper> plain = new OrderStatisticTree<>(byValue);
+        List<IntegerWrapper> added = new ArrayList<>();
+        Random random = new Random(27);
+
+        for (int i = 0; i < 5_000; i++) {
+            IntegerWrapper toAdd = new IntegerWrapper(random.nextInt(1_000) - 500, i);
+            added.add(toAdd);
+            assertEquals(plain.add(toAdd), scored.add(toAdd));
+        }
+
+        for (int i = 0; i < 1_000; i++) {
+            IntegerWrapper toRemove = added.remove(random.nextInt(added.size()));
+            assertEquals(plain.remove(toRemove), scored.remove(toRemove));
+        }
+
+        assertTrue(scored.isHealthy());
+        assertEquals(plain.size(), scored.size());
+
+        for (IntegerWrapper element : added) {
+            assertEquals(plain.rankOf(element), scored.rankOf(element));
+        }
+    }
+
+    @Test
+    public void testRankCacheInvalidation() {
+        for (int i = 0; i < 1000; i += 2) {
+            tree.add(i);
+        }
+        tree.setRankCacheLimit(100);
+
+        assertEquals(100, tree.getRankCacheRebuiltRanks());
+
+        for (int rank = 1; rank <= 100; rank++) {
+            assertEquals(Integer.valueOf(2 * (rank - 1)), tree.get(rank).iterator().next());
+        }
+        assertEquals(100, tree.getRankCacheRebuiltRanks());
+
+        //below the cached window, nothing has to be recomputed
+        tree.add(501);
+        tree.remove(600);
+        assertEquals(Integer.valueOf(198), tree.get(100).iterator().next());
+        assertEquals(100, tree.getRankCacheRebuiltRanks());
+
+        //shifts ranks 11 onwards only
+        tree.add(19);
+        assertEquals(190, tree.getRankCacheRebuiltRanks());
+        assertEquals(Integer.valueOf(18), tree.get(10).iterator().next());
+        assertEquals(Integer.valueOf(19), tree.get(11).iterator().next());
+
+        List<Set<Integer>> podium = tree.getRange(1, 3);
+        assertEquals(3, podium.size());
+        assertEquals(Integer.valueOf(4), podium.get(2).iterator().next());
+    }
+
+    @Test
+    public void testRankCacheMatchesTree() {
+        OrderStatisticTree<IntegerWrapper> cached = new OrderStatisticTree<>();
+        OrderStatisticTree<IntegerWrapper> plain = new OrderStatisticTree<>();
+        cached.setRankCacheLimit(50);
+        List<IntegerWrapper> added = new ArrayList<>();
+        Random random = new Random(28);
+
+        for (int i = 0; i < 10_000; i++) {
+            if (added.isEmpty() || random.nextInt(10) < 6) {
+                IntegerWrapper toAdd = new IntegerWrapper(random.nextInt(200), i);
+                added.add(toAdd);
+                assertEquals(plain.add(toAdd), cached.add(toAdd));
+            } else {
+                IntegerWrapper toRemove = added.remove(random.nextInt(added.size()));
+                assertEquals(plain.remove(toRemove), cached.remove(toRemove));
+            }
+
+            int rank = 1 + random.nextInt(Math.min(60, plain.size()));
+            assertEquals(plain.get(rank), cached.get(rank));
+        }
+
+        assertTrue(cached.getRankCacheRebuiltRanks() > 0);
+        OrderStatisticTree<IntegerWrapper> copy = cached.copy();
+        for (int rank = 1; rank <= Math.min(60, plain.size()); rank++) {
+            assertEquals(plain.get(rank), copy.get(rank));
+        }
+    }
+
+    @Test
+    public void testRankCacheConcurrentReaders() throws Exception {
+        OrderStatisticTree<Integer> cached = new OrderStatisticTree<>();
+        cached.setRankCacheLimit(100);
+        ReadWriteLock lock = new ReentrantReadWriteLock();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean done = new AtomicBoolean();
+
+        //readers share the read lock, as IngestPipeline's read view does
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread(() -> {
+                Random random = new Random();
+                try {
+                    while (!done.get()) {
+                        lock.readLock().lock();
+                        try {
+                            int size = cached.size();
+                            if (size > 0) {
+                                int rank = 1 + random.nextInt(Math.min(100, size));
+                                Set<Integer> group = cached.get(rank);
+                                assertEquals(1, group.size());
+                                assertEquals(rank, cached.rankOf(group.iterator().next()));
+                            }
+                        } finally {
+                            lock.readLock().unlock();
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        Random random = new Random(281);
+        for (int i = 0; i < 20_000; i++) {
+            int value = random.nextInt(500);
+            lock.writeLock().lock();
+            try {
+                if (!cached.add(value)) {
+                    cached.remove(value);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void testAddFromFinger() {
+        OrderStatisticTree<IntegerWrapper> fingerTree = new OrderStatisticTree<>();
+        OrderStatisticTree<IntegerWrapper> plain = new OrderStatisticTree<>();
+        fingerTree.setIncrementalValidation(true);
+        List<IntegerWrapper> added = new ArrayList<>();
+        Random random = new Random(29);
+
+        for (int i = 0; i < 20_000; i++) {
+            if (added.isEmpty() || random.nextInt(10) < 8) {
+                //mostly increasing values with some jitter and the odd outlier
+                int value = random.nextInt(20) == 0 ? random.nextInt(i + 1) : i + random.nextInt(50) - 25;
+                IntegerWrapper toAdd = new IntegerWrapper(value / 4, i);
+                added.add(toAdd);
+                assertEquals(plain.add(toAdd), fingerTree.addFromFinger(toAdd));
+            } else {
+                IntegerWrapper toRemove = added.remove(random.nextInt(added.size()));
+                assertEquals(plain.remove(toRemove), fingerTree.remove(toRemove));
+            }
+        }
+
+        assertFalse(fingerTree.addFromFinger(added.get(0)));
+        assertTrue(fingerTree.isHealthy());
+        assertEquals(plain.size(), fingerTree.size());
+
+        for (IntegerWrapper element : added) {
+            assertEquals(plain.rankOf(element), fingerTree.rankOf(element));
+        }
+    }
+
+    @Test
+    public void testAugmentation() {
+        Augmentation<IntegerWrapper, Long> idSum = Augmentation.of(0L, w -> (long) w.id, Long::sum);
+        OrderStatisticTree<IntegerWrapper> augmented =
+                new OrderStatisticTree<>(Comparator.comparing(w -> w.value), null, idSum);
+        List<IntegerWrapper> added = new ArrayList<>();
+        Random random = new Random(31);
+
+        for (int i = 0; i < 3_000; i++) {
+            if (added.isEmpty() || random.nextInt(10) < 7) {
+                IntegerWrapper toAdd = new IntegerWrapper(random.nextInt(300), i);
+                added.add(toAdd);
+                augmented.add(toAdd);
+            } else {
+                augmented.remove(added.remove(random.nextInt(added.size())));
+            }
+
+            if (i % 100 == 0) {
+                checkAggregates(added, augmented, idSum);
+            }
+        }
+        checkAggregates(added, augmented, idSum);
+    }
+
+    private void checkAggregates(List<IntegerWrapper> expected, OrderStatisticTree<IntegerWrapper> tree,
+                                 Augmentation<IntegerWrapper, Long> idSum) {
+        List<IntegerWrapper> sorted = new ArrayList<>(expected);
+        Collections.sort(sorted);
+        //prefix[i] = sum of ids of the first i elements in order
+        long[] prefix = new long[sorted.size() + 1];
+        for (int i = 0; i < sorted.size(); i++) {
+            prefix[i + 1] = prefix[i] + sorted.get(i).id;
+        }
+
+        for (int i = 0; i < sorted.size(); i += 7) {
+            IntegerWrapper element = sorted.get(i);
+            int rank = tree.rankOf(element);
+            assertEquals(prefix[rank - 1], (long) tree.aggregateBelow(idSum, element));
+
+            //a whole tie group counts when its rank is in range
+            int groupEnd = tree.rankInterval(element).getLastRank();
+            assertEquals(prefix[groupEnd], (long) tree.aggregate(idSum, 1, rank));
+            assertEquals(prefix[sorted.size()] - prefix[rank - 1], (long) tree.aggregate(idSum, rank, tree.size()));
+        }
+    }
+
+    @Test
+    public void testTieGroupIsNotRefoldedOnPull() {
+        AtomicInteger lifts = new AtomicInteger();
+        Augmentation<IntegerWrapper, Long> idSum = Augmentation.of(0L, w -> {
+            lifts.incrementAndGet();
+            return (long) w.id;
+        }, Long::sum);
+        OrderStatisticTree<IntegerWrapper> augmented =
+                new OrderStatisticTree<>(Comparator.comparing(w -> w.value), null, idSum);
+        List<IntegerWrapper> added = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++) {
+            added.add(new IntegerWrapper(500, i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            added.add(new IntegerWrapper(i, 1000 + i));
+        }
+        for (IntegerWrapper element : added) {
+            augmented.add(element);
+        }
+
+        //one lift per add, however often the big group is pulled or rotated
+        assertEquals(2000, lifts.get());
+        checkAggregates(added, augmented, idSum);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAggregateRequiresTreeAugmentation() {
+        tree.add(1);
+        tree.aggregate(Augmentation.of(0, i -> i, Integer::sum), 1, 1);
+    }
+
+    @Test
+    public void testNavigation() {
+        Random random = new Random(32);
+
+        for (int i = 0; i < 2_000; i++) {
+            int value = random.nextInt(1_000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(set.remove(value), tree.remove(value));
+            } else {
+                assertEquals(set.add(value), tree.add(value));
+            }
+
+            if (set.isEmpty()) {
+                continue;
+            }
+            assertEquals(set.first(), tree.first().iterator().next());
+            assertEquals(set.last(), tree.last().iterator().next());
+
+            int query = random.nextInt(1_100) - 50;
+            checkNavigation(set.floor(query), tree.floor(query));
+            checkNavigation(set.ceiling(query), tree.ceiling(query));
+            checkNavigation(set.higher(query), tree.higher(query));
+            checkNavigation(set.lower(query), tree.lower(query));
+            assertEquals(set.headSet(query).size() + 1, tree.prospectiveRank(query));
+        }
+    }
+
+    private void checkNavigation(Integer expected, RankedGroup<Integer> actual) {
+        if (expected == null) {
+            assertNull(actual);
+        } else {
+            assertEquals(expected, actual.getElements().iterator().next());
+            assertEquals(set.headSet(expected).size() + 1, actual.getRank());
+        }
+    }
+
+    @Test
+    public void testNavigationWithTies() {
+        OrderStatisticTree<IntegerWrapper> ties = new OrderStatisticTree<>();
+        for (int i = 0; i < 10; i++) {
+            ties.add(new IntegerWrapper(i / 3, i));
+        }
+
+        //groups: 0 at rank 1, 1 at rank 4, 2 at rank 7, 3 at rank 10
+        RankedGroup<IntegerWrapper> floor = ties.floor(new IntegerWrapper(1, -1));
+        assertEquals(4, floor.getRank());
+        assertEquals(3, floor.getElements().size());
+        assertEquals(7, ties.higher(new IntegerWrapper(1, -1)).getRank());
+        assertEquals(1, ties.lower(new IntegerWrapper(1, -1)).getRank());
+        assertEquals(7, ties.prospectiveRank(new IntegerWrapper(2, -1)));
+        assertEquals(11, ties.prospectiveRank(new IntegerWrapper(5, -1)));
+        assertNull(ties.higher(new IntegerWrapper(3, -1)));
+        assertEquals(1, ties.last().size());
+        assertEquals(3, ties.first().size());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testFirstOnEmptyTree() {
+        tree.first();
+    }
+
+    @Test
+    public void testCountsRestoredOnDuplicateMissAndFailure() {
+        Comparator<Integer> rejecting = (a, b) -> {
+            if (a == 13 || b == 13) {
+                throw new IllegalArgumentException("13");
+            }
+            return Integer.compare(a, b);
+        };
+        OrderStatisticTree<Integer> strict = new OrderStatisticTree<>(rejecting);
+        Random random = new Random(11);
+
+        for (int i = 0; i < 2000; i++) {
+            int value = random.nextInt(500);
+            if (value == 13) {
+                try {
+                    strict.add(value);
+                    fail();
+                } catch (IllegalArgumentException e) {
+                    //expected
+                }
+            } else if (random.nextBoolean()) {
+                strict.add(value);
+            } else {
+                strict.remove(value);
+            }
+        }
+
+        assertTrue(strict.isHealthy());
+        assertTrue(strict.isWellIndexed());
+    }
+
+    @Test
+    public void testBatchLookups() {
+        OrderStatisticTree<IntegerWrapper> ties = new OrderStatisticTree<>();
+        Random random = new Random(5);
+        List<IntegerWrapper> queries = new ArrayList<>();
+
+        for (int i = 0; i < 50_000; i++) {
+            IntegerWrapper wrapper = new IntegerWrapper(random.nextInt(20_000), i);
+            if (random.nextInt(4) > 0) {
+                ties.add(wrapper);
+            }
+            queries.add(wrapper);
+        }
+
+        int[] ranks = new int[30_000];
+        for (int i = 0; i < ranks.length; i++) {
+            ranks[i] = 1 + random.nextInt(ties.size());
+        }
+
+        checkBatchLookups(ties, queries, ranks);
+        queries.sort(ties.comparator());
+        Arrays.sort(ranks);
+        checkBatchLookups(ties, queries, ranks);
+    }
+
+    private void checkBatchLookups(OrderStatisticTree<IntegerWrapper> ties, List<IntegerWrapper> queries,
+                                   int[] ranks) {
+        int[] expected = new int[queries.size()];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = ties.rankOf(queries.get(i));
+        }
+
+        assertArrayEquals(expected, ties.rankOfAll(queries));
+        assertArrayEquals(expected, ties.rankOfAll(queries, ForkJoinPool.commonPool()));
+        //50k elements with positional access only, quadratic if indexed
+        assertArrayEquals(expected, ties.rankOfAll(new LinkedList<>(queries)));
+
+        List<Set<IntegerWrapper>> groups = ties.getAll(ranks);
+        List<Set<IntegerWrapper>> parallelGroups = ties.getAll(ranks, ForkJoinPool.commonPool());
+        for (int i = 0; i < ranks.length; i++) {
+            assertEquals(ties.get(ranks[i]), groups.get(i));
+            assertEquals(ties.get(ranks[i]), parallelGroups.get(i));
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testGetAllChecksRanks() {
+        tree.add(1);
+        tree.getAll(new int[]{1, 2});
+    }
+
+    @Test
+    public void testCopy() {
+        OrderStatisticTree<IntegerWrapper> ties = new OrderStatisticTree<>();
+        Random random = new Random(17);
+        List<IntegerWrapper> added = new ArrayList<>();
+
+        for (int i = 0; i < 5000; i++) {
+            IntegerWrapper wrapper = new IntegerWrapper(random.nextInt(2000), i);
+            ties.add(wrapper);
+            added.add(wrapper);
+        }
+
+        OrderStatisticTree<IntegerWrapper> copy = ties.copy();
+        assertTrue(copy.isHealthy());
+        assertEquals(ties.size(), copy.size());
+        assertEquals(ties.first(), copy.first());
+        assertEquals(ties.last(), copy.last());
+        for (int rank = 1; rank <= ties.size(); rank++) {
+            assertEquals(ties.get(rank), copy.get(rank));
+        }
+
+        //changes to either tree must not show in the other
+        for (int i = 0; i < 2500; i++) {
+            copy.remove(added.get(i));
+        }
+        copy.add(new IntegerWrapper(-1, -1));
+        assertEquals(5000, ties.size());
+        assertEquals(2501, copy.size());
+        assertTrue(ties.isHealthy());
+        assertTrue(copy.isHealthy());
+        for (IntegerWrapper wrapper : added) {
+            assertTrue(ties.contains(wrapper));
+        }
+        assertEquals(-1, ties.rankOf(new IntegerWrapper(-1, -1)));
+        assertEquals(1, copy.rankOf(new IntegerWrapper(-1, -1)));
+
+        assertTrue(new OrderStatisticTree<Integer>().copy().isEmpty());
+    }
+
+    @Test
+    public void testRankInterval() {
+        OrderStatisticTree<IntegerWrapper> ties = new OrderStatisticTree<>();
+        for (int i = 0; i < 10; i++) {
+            ties.add(new IntegerWrapper(i / 3, i));
+        }
+
+        //groups: 0 at ranks 1-3, 1 at 4-6, 2 at 7-9, 3 at 10
+        assertEquals(new RankInterval(4, 6), ties.rankInterval(new IntegerWrapper(1, 5)));
+        assertEquals(3, ties.rankInterval(new IntegerWrapper(0, 0)).getTieCount());
+        assertEquals(new RankInterval(10, 10), ties.rankInterval(new IntegerWrapper(3, 9)));
+        assertNull(ties.rankInterval(new IntegerWrapper(1, 42)));
+        assertNull(ties.rankInterval(new IntegerWrapper(7, 42)));
+
+        int[] interval = {-1, -1, -1};
+        assertTrue(ties.rankInterval(new IntegerWrapper(2, 8), interval));
+        assertArrayEquals(new int[]{7, 9, 3}, interval);
+        assertFalse(ties.rankInterval(new IntegerWrapper(2, 42), interval));
+        assertArrayEquals(new int[]{7, 9, 3}, interval);
+    }
+
+    @Test
+    public void testLazyDeletion() {
+        for (BalancingScheme scheme : BalancingScheme.values()) {
+            OrderStatisticTree<Integer> lazy = new OrderStatisticTree<>(Comparator.naturalOrder(), null, null, scheme);
+            TreeSet<Integer> expected = new TreeSet<>();
+            lazy.setLazyDeletion(true);
+            lazy.setIncrementalValidation(true);
+            Random random = new Random(44);
+
+            for (int i = 0; i < 20_000; i++) {
+                int value = random.nextInt(2000);
+                if (random.nextInt(10) < 5) {
+                    assertEquals(expected.add(value), lazy.add(value));
+                } else {
+                    assertEquals(expected.remove(value), lazy.remove(value));
+                }
+
+                assertEquals(expected.size(), lazy.size());
+                int probe = random.nextInt(2000);
+                assertEquals(expected.contains(probe) ? expected.headSet(probe).size() + 1 : -1,
+                        lazy.rankOf(probe));
+
+                RankedGroup<Integer> floor = lazy.floor(probe);
+                assertEquals(expected.floor(probe), floor == null ? null : floor.getElements().iterator().next());
+                RankedGroup<Integer> higher = lazy.higher(probe);
+                assertEquals(expected.higher(probe), higher == null ? null : higher.getElements().iterator().next());
+                if (higher != null) {
+                    assertEquals(expected.headSet(expected.higher(probe)).size() + 1, higher.getRank());
+                }
+            }
+
+            assertTrue(lazy.isHealthy());
+            assertEquals(new ArrayList<>(expected), new ArrayList<>(lazy.asNavigableSet()));
+            assertEquals(new ArrayList<>(expected.descendingSet()),
+                    new ArrayList<>(lazy.asNavigableSet().descendingSet()));
+            assertEquals(Collections.singleton(expected.first()), lazy.first());
+            assertEquals(Collections.singleton(expected.last()), lazy.last());
+            int rank = 1;
+            for (Integer value : expected) {
+                assertEquals(Collections.singleton(value), lazy.get(rank++));
+            }
+
+            lazy.compact();
+            assertEquals(0, lazy.getTombstoneCount());
+            assertTrue(scheme.name(), lazy.isHealthy());
+            for (int i = 0; i < 2000; i++) {
+                assertEquals(expected.add(i), lazy.add(i));
+            }
+            assertTrue(scheme.name(), lazy.isHealthy());
+        }
+    }
+
+    @Test
+    public void testNoCompactionOnRemovalByDefault() {
+        OrderStatisticTree<Integer> lazy = new OrderStatisticTree<>();
+        lazy.setLazyDeletion(true);
+        for (int i = 0; i < 1000; i++) {
+            lazy.add(i);
+        }
+        for (int i = 0; i < 999; i++) {
+            lazy.remove(i);
+        }
+        assertEquals(999, lazy.getTombstoneCount());
+        assertEquals(1, lazy.rankOf(999));
+        assertTrue(lazy.isHealthy());
+    }
+
+    @Test
+    public void testCompaction() {
+        OrderStatisticTree<IntegerWrapper> lazy = new OrderStatisticTree<>();
+        lazy.setLazyDeletion(true);
+        lazy.setCompactionThreshold(1);
+        List<IntegerWrapper> added = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            IntegerWrapper wrapper = new IntegerWrapper(i / 2, i);
+            added.add(wrapper);
+            lazy.add(wrapper);
+        }
+
+        //removing one of a pair shrinks its group, removing both leaves a tombstone
+        for (int i = 0; i < 600; i++) {
+            assertTrue(lazy.remove(added.get(i)));
+        }
+        assertEquals(300, lazy.getTombstoneCount());
+        assertEquals(400, lazy.size());
+        assertEquals(1, lazy.rankOf(added.get(600)));
+        assertTrue(lazy.isHealthy());
+
+        //an equal element revives a tombstone
+        assertTrue(lazy.add(new IntegerWrapper(10, -1)));
+        assertEquals(299, lazy.getTombstoneCount());
+        assertEquals(1, lazy.rankOf(new IntegerWrapper(10, -1)));
+        assertEquals(2, lazy.rankOf(added.get(600)));
+
+        OrderStatisticTree<IntegerWrapper> copy = lazy.copy();
+        assertEquals(299, copy.getTombstoneCount());
+        assertTrue(copy.isHealthy());
+
+        lazy.compact();
+        assertEquals(0, lazy.getTombstoneCount());
+        assertEquals(401, lazy.size());
+        assertTrue(lazy.isHealthy());
+        assertEquals(2, lazy.rankOf(added.get(600)));
+        assertEquals(400, lazy.rankOf(added.get(999)));
+
+        //crossing the threshold compacts on its own
+        lazy.setCompactionThreshold(0.25);
+        for (int i = 600; i < 800; i += 2) {
+            lazy.remove(added.get(i));
+            lazy.remove(added.get(i + 1));
+        }
+        assertTrue(lazy.getTombstoneCount() < 0.25 * (lazy.size() + lazy.getTombstoneCount()));
+        assertEquals(201, lazy.size());
+        assertTrue(lazy.isHealthy());
+
+        copy.setLazyDeletion(false);
+        assertEquals(0, copy.getTombstoneCount());
+        assertTrue(copy.remove(added.get(999)));
+        assertTrue(copy.isHealthy());
+    }
+
+    @Test
+    public void testHistogram() {
+        Random random = new Random(45);
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            int value = random.nextInt(10_000);
+            if (tree.add(value)) {
+                values.add(value);
+            }
+        }
+
+        List<Integer> boundaries = Arrays.asList(-5, 0, 2500, 2500, 5000, 9999, 20_000);
+        int[] expected = new int[boundaries.size() + 1];
+        for (int value : values) {
+            int bucket = 0;
+            while (bucket < boundaries.size() && value >= boundaries.get(bucket)) {
+                bucket++;
+            }
+            expected[bucket]++;
+        }
+        assertArrayEquals(expected, tree.histogram(boundaries));
+        assertArrayEquals(new int[]{tree.size()}, tree.histogram(Collections.<Integer>emptyList()));
+
+        try {
+            tree.histogram(Arrays.asList(10, 5));
+            fail("descending boundaries accepted");
+        } catch (IllegalArgumentException expectedException) {
+            //expected
+        }
+
+        int[] ranks = tree.equalFrequencyRanks(10);
+        assertEquals(11, ranks.length);
+        assertEquals(1, ranks[0]);
+        assertEquals(tree.size() + 1, ranks[10]);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(tree.size() / 10.0, ranks[i + 1] - ranks[i], 1);
+        }
+        assertArrayEquals(new int[]{1, 1}, new OrderStatisticTree<Integer>().equalFrequencyRanks(1));
+    }
+
+    @Test
+    public void testEqualFrequencyRanksKeepTiesTogether() {
+        OrderStatisticTree<IntegerWrapper> ties = new OrderStatisticTree<>();
+        //a group of 6 at ranks 1-6 then singles at 7-10
+        for (int i = 0; i < 10; i++) {
+            ties.add(new IntegerWrapper(Math.max(0, i - 5), i));
+        }
+
+        assertArrayEquals(new int[]{1, 1, 7, 11}, ties.equalFrequencyRanks(3));
+        assertArrayEquals(new int[]{1, 1, 1, 7, 9, 11}, ties.equalFrequencyRanks(5));
+        assertArrayEquals(new int[]{6, 1, 1, 1, 1},
+                ties.histogram(Arrays.asList(new IntegerWrapper(1, -1), new IntegerWrapper(2, -1),
+                        new IntegerWrapper(3, -1), new IntegerWrapper(4, -1))));
+    }
+
+    @Test
+    public void testCategories() {
+        for (BalancingScheme scheme : BalancingScheme.values()) {
+            for (boolean lazy : new boolean[]{false, true}) {
+                OrderStatisticTree<IntegerWrapper> categorized = new OrderStatisticTree<>(Comparator.naturalOrder(),
+                        null, null, scheme, wrapper -> wrapper.id % 3, 3);
+                categorized.setLazyDeletion(lazy);
+                List<IntegerWrapper> added = new ArrayList<>();
+                Random random = new Random(46);
+
+                for (int i = 0; i < 4000; i++) {
+                    if (added.isEmpty() || random.nextInt(10) < 6) {
+                        IntegerWrapper wrapper = new IntegerWrapper(random.nextInt(300), i);
+                        added.add(wrapper);
+                        assertTrue(categorized.add(wrapper));
+                    } else {
+                        assertTrue(categorized.remove(added.remove(random.nextInt(added.size()))));
+                    }
+                }
+
+                OrderStatisticTree<IntegerWrapper> copy = categorized.copy();
+                categorized.compact();
+
+                for (OrderStatisticTree<IntegerWrapper> tree : Arrays.asList(categorized, copy)) {
+                    for (int category = 0; category < 3; category++) {
+                        List<IntegerWrapper> members = new ArrayList<>();
+                        for (IntegerWrapper wrapper : added) {
+                            if (wrapper.id % 3 == category) {
+                                members.add(wrapper);
+                            }
+                        }
+                        members.sort(Comparator.naturalOrder());
+                        assertEquals(members.size(), tree.size(category));
+
+                        for (int i = 0; i < members.size(); i++) {
+                            IntegerWrapper wrapper = members.get(i);
+                            //first position of its tie group within the category
+                            int first = i;
+                            while (first > 0 && members.get(first - 1).compareTo(wrapper) == 0) {
+                                first--;
+                            }
+                            assertEquals(first + 1, tree.rankOf(wrapper, category));
+                            assertEquals(-1, tree.rankOf(wrapper, (category + 1) % 3));
+
+                            Set<IntegerWrapper> group = tree.get(i + 1, category);
+                            assertEquals(first == i, group.contains(wrapper));
+                            assertEquals(first == i, !group.isEmpty());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTieGroupCategoriesAreNotRecountedOnPull() {
+        AtomicInteger groupCalls = new AtomicInteger();
+        OrderStatisticTree<IntegerWrapper> categorized = new OrderStatisticTree<>(Comparator.naturalOrder(),
+                null, null, BalancingScheme.AVL, wrapper -> {
+                    if (wrapper.value == 0) {
+                        groupCalls.incrementAndGet();
+                    }
+                    return wrapper.id % 2;
+                }, 2);
+        categorized.setMultiset(true);
+
+        for (int i = 0; i < 1000; i++) {
+            categorized.add(new IntegerWrapper(0, i));
+        }
+        int groupAdds = groupCalls.get();
+        for (int i = 1; i <= 1000; i++) {
+            categorized.add(new IntegerWrapper(i, i));
+        }
+        //adds and rotations elsewhere never visit the group's members
+        assertEquals(groupAdds, groupCalls.get());
+
+        categorized.add(new IntegerWrapper(0, 1));
+        assertTrue(categorized.remove(new IntegerWrapper(0, 2)));
+        assertTrue(categorized.remove(new IntegerWrapper(0, 3)));
+        assertEquals(1000, categorized.size(1));
+        assertEquals(999, categorized.size(0));
+        assertEquals(501, categorized.rankOf(new IntegerWrapper(1, 1), 1));
+        assertEquals(500, categorized.rankOf(new IntegerWrapper(2, 2), 0));
+        assertEquals(499, categorized.get(1, 1).size());
+        assertTrue(categorized.isHealthy());
+    }
+
+    @Test
+    public void testCategoryChecks() {
+        OrderStatisticTree<Integer> categorized = new OrderStatisticTree<>(Comparator.naturalOrder(),
+                value -> value < 0 ? -1 : value % 2, 2);
+        categorized.add(4);
+        categorized.add(7);
+
+        try {
+            categorized.add(-3);
+            fail("out of range category accepted");
+        } catch (IllegalArgumentException expected) {
+            //expected
+        }
+        assertEquals(2, categorized.size());
+        assertTrue(categorized.isHealthy());
+        assertEquals(1, categorized.rankOf(7, 1));
+
+        try {
+            categorized.get(2, 0);
+            fail("rank beyond the category accepted");
+        } catch (IndexOutOfBoundsException expected) {
+            //expected
+        }
+        try {
+            tree.rankOf(1, 0);
+            fail("category query on a tree without categories");
+        } catch (IllegalStateException expected) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testNodePool() {
+        OrderStatisticTree<IntegerWrapper> pooled = new OrderStatisticTree<>();
+        pooled.setNodePoolCapacity(100);
+        pooled.setIncrementalValidation(true);
+        List<IntegerWrapper> added = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            IntegerWrapper wrapper = new IntegerWrapper(i, i);
+            added.add(wrapper);
+            pooled.add(wrapper);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            pooled.remove(added.get(i));
+        }
+        assertEquals(10, pooled.getPooledNodeCount());
+        for (int i = 0; i < 3; i++) {
+            pooled.add(new IntegerWrapper(-i - 1, -i - 1));
+        }
+        assertEquals(7, pooled.getPooledNodeCount());
+        assertEquals(1, pooled.rankOf(new IntegerWrapper(-3, -3)));
+        assertEquals(4, pooled.rankOf(added.get(10)));
+
+        //sustained churn with ties, reused nodes and tie sets must behave like new ones
+        Random random = new Random(47);
+        for (int i = 0; i < 20_000; i++) {
+            if (random.nextBoolean() && !added.isEmpty()) {
+                IntegerWrapper wrapper = added.remove(random.nextInt(added.size()));
+                assertEquals(wrapper.id >= 10, pooled.remove(wrapper));
+            } else {
+                IntegerWrapper wrapper = new IntegerWrapper(random.nextInt(200), 1000 + i);
+                added.add(wrapper);
+                assertTrue(pooled.add(wrapper));
+            }
+            assertTrue(pooled.getPooledNodeCount() <= 100);
+        }
+        assertTrue(pooled.isHealthy());
+        for (IntegerWrapper wrapper : added) {
+            assertTrue(wrapper.id < 10 || pooled.contains(wrapper));
+        }
+
+        //compaction pools the tombstones it drops
+        pooled.setLazyDeletion(true);
+        pooled.setCompactionThreshold(1);
+        pooled.clear();
+        assertEquals(0, pooled.getPooledNodeCount());
+        for (int i = 0; i < 50; i++) {
+            pooled.add(new IntegerWrapper(i, i));
+        }
+        for (int i = 0; i < 20; i++) {
+            pooled.remove(new IntegerWrapper(i, i));
+        }
+        pooled.compact();
+        assertEquals(20, pooled.getPooledNodeCount());
+        assertTrue(pooled.isHealthy());
+
+        pooled.setNodePoolCapacity(5);
+        assertEquals(5, pooled.getPooledNodeCount());
+        pooled.setNodePoolCapacity(0);
+        assertEquals(0, pooled.getPooledNodeCount());
+        pooled.setLazyDeletion(false);
+        pooled.remove(new IntegerWrapper(30, 30));
+        assertEquals(0, pooled.getPooledNodeCount());
+        assertEquals(29, pooled.size());
+    }
+
+    @Test
+    public void testFullTreeRejectsAdd() throws Exception {
+        OrderStatisticTree<Integer> tree = new OrderStatisticTree<>();
+        tree.add(1);
+        Field sizeField = OrderStatisticTree.class.getDeclaredField("size");
+        sizeField.setAccessible(true);
+        sizeField.setInt(tree, Integer.MAX_VALUE);
+
+        try {
+            tree.add(2);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            tree.addFromFinger(2);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertFalse(tree.contains(2));
+    }
+
+    @Test
+    public void testSetViewRejectsMultiset() {
+        OrderStatisticTree<Integer> tree = new OrderStatisticTree<>();
+        NavigableSet<Integer> view = tree.asNavigableSet();
+        tree.setMultiset(true);
+        tree.add(1);
+        tree.add(1);
+
+        try {
+            view.size();
+            fail("copies counted as set members");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            view.iterator();
+            fail("copies iterated as set members");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            view.add(1);
+            fail("a present element added to a set");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(2, tree.multiplicity(1));
+    }
+
+    @Test
+    public void testMultiset() {
+        Augmentation<IntegerWrapper, Long> idSum = Augmentation.of(0L, w -> (long) w.id, Long::sum);
+        OrderStatisticTree<IntegerWrapper> tree = new OrderStatisticTree<>(Comparator.comparing(w -> w.value),
+                null, idSum, BalancingScheme.AVL, w -> w.id % 3, 3);
+        tree.setMultiset(true);
+        tree.setIncrementalValidation(true);
+        //equal ids are equal elements, so an id drawn twice is a second copy
+        List<IntegerWrapper> added = new ArrayList<>();
+        Random random = new Random(149);
+
+        for (int i = 0; i < 5_000; i++) {
+            if (added.isEmpty() || random.nextInt(10) < 6) {
+                int id = random.nextInt(200);
+                IntegerWrapper toAdd = new IntegerWrapper(id % 40, id);
+                added.add(toAdd);
+                assertTrue(tree.add(toAdd));
+            } else {
+                assertTrue(tree.remove(added.remove(random.nextInt(added.size()))));
+            }
+            assertEquals(added.size(), tree.size());
+
+            if (i % 100 == 0) {
+                checkAggregates(added, tree, idSum);
+                for (IntegerWrapper element : added) {
+                    assertEquals(Collections.frequency(added, element), tree.multiplicity(element));
+                }
+                for (int category = 0; category < 3; category++) {
+                    int expected = 0;
+                    for (IntegerWrapper element : added) {
+                        expected += element.id % 3 == category ? 1 : 0;
+                    }
+                    assertEquals(expected, tree.size(category));
+                }
+            }
+        }
+
+        assertTrue(tree.isHealthy());
+        try {
+            tree.asNavigableSet();
+            fail("a multiset viewed as a set");
+        } catch (IllegalStateException expected) {
+        }
+
+        OrderStatisticTree<IntegerWrapper> copy = tree.copy();
+        assertTrue(copy.isMultiset());
+        for (IntegerWrapper element : added) {
+            assertTrue(copy.remove(element));
+        }
+        assertTrue(copy.isEmpty());
+        assertTrue(copy.isHealthy());
+        assertEquals(added.size(), tree.size());
+    }
+
+    @Test
+    public void testMultisetRepeatsShareOneEntry() {
+        OrderStatisticTree<Integer> tree = new OrderStatisticTree<>();
+        assertTrue(tree.add(5));
+        assertFalse(tree.add(5));
+        tree.clear();
+
+        tree.setMultiset(true);
+        tree.add(1);
+        for (int i = 0; i < 1_000_000; i++) {
+            assertTrue(tree.add(5));
+        }
+        tree.add(9);
+
+        assertEquals(1_000_002, tree.size());
+        assertEquals(1_000_000, tree.multiplicity(5));
+        assertEquals(0, tree.multiplicity(7));
+        assertEquals(2, tree.rankOf(5));
+        assertEquals(1_000_002, tree.rankOf(9));
+        assertEquals(Collections.singleton(5), tree.get(2));
+        assertTrue(tree.get(3).isEmpty());
+        assertEquals(new RankInterval(2, 1_000_001), tree.rankInterval(5));
+
+        assertTrue(tree.remove(5));
+        assertEquals(999_999, tree.multiplicity(5));
+        assertEquals(1_000_001, tree.rankOf(9));
+        assertTrue(tree.isHealthy());
+
+        try {
+            tree.setMultiset(false);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
 }
@@ -0,0 +1,90 @@
+package com.mtecresults.ranking;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WindowedOrderStatisticTreeTest {
+
+    private long now = 0;
+
+    private WindowedOrderStatisticTree<Integer> newWindow(long ttl) {
+        return new WindowedOrderStatisticTree<>(Comparator.<Integer>naturalOrder(), null, ttl,
+                TimeUnit.NANOSECONDS, () -> now);
+    }
+
+    @Test
+    public void testExpiry() {
+        WindowedOrderStatisticTree<Integer> window = newWindow(10);
+
+        window.add(5);
+        now = 4;
+        window.add(3);
+        now = 8;
+        window.add(7);
+
+        assertEquals(3, window.size());
+        assertEquals(1, window.rankOf(3));
+        assertEquals(2, window.rankOf(5));
+
+        //5 expires at 10, 3 at 14
+        now = 10;
+        assertEquals(2, window.size());
+        assertEquals(-1, window.rankOf(5));
+        assertEquals(Collections.singleton(7), window.get(2));
+
+        now = 14;
+        assertEquals(Collections.singleton(7), window.get(1));
+        assertEquals(1, window.size());
+
+        now = 100;
+        assertEquals(0, window.size());
+    }
+
+    @Test
+    public void testRemoveAndReAdd() {
+        WindowedOrderStatisticTree<Integer> window = newWindow(10);
+
+        window.add(1);
+        assertFalse(window.add(1));
+        assertTrue(window.remove(1));
+        now = 5;
+        window.add(1);
+
+        //the entry from time 0 is stale and must not evict the re-added element
+        now = 12;
+        assertEquals(0, window.evictExpired());
+        assertTrue(window.contains(1));
+
+        now = 15;
+        assertEquals(1, window.evictExpired());
+        assertFalse(window.contains(1));
+    }
+
+    @Test
+    public void testEvictionMatchesExactTree() {
+        WindowedOrderStatisticTree<Integer> window = newWindow(1000);
+        OrderStatisticTree<Integer> expected = new OrderStatisticTree<>();
+        Deque<long[]> added = new ArrayDeque<>();
+        Random random = new Random(7);
+
+        for (int i = 0; i < 5000; i++) {
+            now += random.nextInt(5);
+            while (!added.isEmpty() && now - added.peekFirst()[1] >= 1000) {
+                expected.remove((int) added.pollFirst()[0]);
+            }
+
+            int value = random.nextInt(2000);
+            if (window.add(value)) {
+                assertTrue(expected.add(value));
+                added.addLast(new long[]{value, now});
+            }
+
+            assertEquals(expected.size(), window.size());
+            int probe = random.nextInt(2000);
+            assertEquals(expected.rankOf(probe), window.rankOf(probe));
+        }
+    }
+}